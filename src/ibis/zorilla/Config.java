@@ -93,6 +93,27 @@ public class Config extends TypedProperties {
 
     public static final String MAX_CLUSTER_SIZE = PREFIX + "max.cluster.size";
 
+    public static final String MAX_CONNECTIONS = PREFIX + "max.connections";
+
+    public static final String STATE_FANOUT = PREFIX + "job.state.fanout";
+
+    public static final String FILE_BLOCK_SIZE = PREFIX + "file.block.size";
+
+    public static final String FILE_CHUNK_SIZE = PREFIX + "file.chunk.size";
+
+    public static final String FILE_CACHE_SIZE = PREFIX + "file.cache.size";
+
+    public static final String FILE_LINK = PREFIX + "file.link";
+
+    public static final String OUTPUT_COMPRESSION = PREFIX
+            + "output.compression";
+
+    public static final String CONNECTION_IDLE_TIMEOUT = PREFIX
+            + "connection.idle.timeout";
+
+    public static final String WORKER_LEASE_TIMEOUT = PREFIX
+            + "worker.lease.timeout";
+
     public static final String SLAVES = PREFIX + "slaves";
 
     public static final String START_HUB = PREFIX + "start.hub";
@@ -110,6 +131,8 @@ public class Config extends TypedProperties {
 
     public static final String RESOURCE_MEMORY = PREFIX + "resource.memory";
 
+    public static final String RESOURCE_CUSTOM = PREFIX + "resource.custom";
+
     public static final String VIZ_INFO = PREFIX + "viz.info";
 
     public static final String VERBOSE = PREFIX + "verbose";
@@ -210,6 +233,33 @@ public class Config extends TypedProperties {
 
             { MAX_CLUSTER_SIZE, "25", "Maximum size of a cluster" },
 
+            { MAX_CONNECTIONS, "100",
+                    "Integer: maximum number of connections to other nodes kept open" },
+
+            { WORKER_LEASE_TIMEOUT, "300",
+                    "Integer: number of seconds resources reserved for a worker are held if the worker is not started" },
+
+            { CONNECTION_IDLE_TIMEOUT, "300",
+                    "Integer: number of seconds after which an unused connection is closed" },
+
+            { STATE_FANOUT, "4",
+                    "Integer: number of constituents a job state update is sent (and forwarded) to, 0 to send updates to all constituents directly" },
+
+            { FILE_BLOCK_SIZE, "1048576",
+                    "Integer: size (in bytes) of the blocks used to transfer input files" },
+
+            { FILE_CHUNK_SIZE, "4194304",
+                    "Integer: size (in bytes) of the independently verified chunks input files are downloaded in" },
+
+            { FILE_CACHE_SIZE, "10240",
+                    "Integer: maximum size (in MB) of the node wide cache of input files, 0 to disable" },
+
+            { FILE_LINK, "true",
+                    "Boolean: hard link input files into the sandbox of workers, instead of copying them. Linked input files are read only, jobs which modify their input files should set the writable.input attribute" },
+
+            { OUTPUT_COMPRESSION, "true",
+                    "Boolean: compress output (stdout, stderr, log and output files) sent from workers to the primary" },
+
             {
                     RESOURCE_ADAPTOR,
                     "local",
@@ -233,6 +283,11 @@ public class Config extends TypedProperties {
                     null,
                     "Amount of memory available on each resource. Automatically determined on localhost" },
 
+            {
+                    RESOURCE_CUSTOM,
+                    null,
+                    "Comma separated list of name=amount of custom resources (for instance accelerators) available on each resource" },
+
             // {
             // WORKER,
             // "false",
@@ -2,12 +2,14 @@ package ibis.zorilla;
 
 import ibis.zorilla.cluster.ClusterService;
 import ibis.zorilla.cluster.VivaldiService;
+import ibis.zorilla.dfs.FileCache;
 import ibis.zorilla.gossip.GossipService;
 import ibis.zorilla.job.JobService;
 import ibis.zorilla.job.ZorillaJob;
 import ibis.zorilla.net.Discovery;
 import ibis.zorilla.net.FloodService;
 import ibis.zorilla.net.Network;
+import ibis.zorilla.net.NodeInfo;
 import ibis.zorilla.net.UdpDiscoveryService;
 import ibis.zorilla.rpc.SocketRPC;
 
@@ -53,6 +55,8 @@ public final class Node {
 
     private final SocketRPC socketRPC;
 
+    private final FileCache fileCache;
+
     // ***** Services *****\\
 
     private final Discovery discoveryService;
@@ -127,6 +131,9 @@ public final class Node {
                 log4jFile.getAbsolutePath());
         Logger.getRootLogger().addAppender(appender);
 
+        fileCache = new FileCache(new File(config.getTmpDir(), "cache"),
+                config.getLongProperty(Config.FILE_CACHE_SIZE) * 1024 * 1024);
+
         // INIT SERVICES
      
         vivaldiService = new VivaldiService(this);
@@ -182,6 +189,13 @@ public final class Node {
         return name;
     }
 
+    /**
+     * Returns (up to date) info on this node.
+     */
+    public NodeInfo getInfo() {
+        return network.getNodeInfo();
+    }
+
     public long getStartTime() {
         return startTime;
     }
@@ -190,6 +204,10 @@ public final class Node {
         return network;
     }
 
+    public FileCache fileCache() {
+        return fileCache;
+    }
+
     public Discovery discoveryService() {
         return discoveryService;
     }
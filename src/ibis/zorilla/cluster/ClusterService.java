@@ -1,18 +1,20 @@
 package ibis.zorilla.cluster;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
 import ibis.zorilla.Node;
+import ibis.zorilla.net.Message;
+import ibis.zorilla.net.MessageHandler;
+import ibis.zorilla.net.Network;
 import ibis.zorilla.net.NodeInfo;
 
 /**
  * Class taking care of maintaining a list of "close-by" nodes
  */
-public abstract class ClusterService {
+public abstract class ClusterService implements MessageHandler {
 
     public static final byte OPCODE_NEIGHBOUR_INFO_REQUEST = 1;
 
@@ -27,6 +29,8 @@ public abstract class ClusterService {
 
     public ClusterService(Node node) throws IOException {
         this.node = node;
+
+        node.network().register(this, Network.CLUSTER_SERVICE);
     }
 
     public abstract void start();
@@ -41,28 +45,22 @@ public abstract class ClusterService {
 
     public abstract double distanceToClosestNeighbour();
 
-    public void handleConnection(VirtualSocket socket) {
-        try {
-            byte opcode = (byte) socket.getInputStream().read();
-
-            if (opcode != OPCODE_NEIGHBOUR_INFO_REQUEST) {
-                throw new IOException("received illegal opcode " + opcode);
-            }
-
-            ObjectOutputStream out = new ObjectOutputStream(socket
-                    .getOutputStream());
-            out.writeObject(node.getInfo());
-            out.flush();
-            out.close();
-            socket.close();
-        } catch (IOException e) {
-            logger.error("error on handling neighbour request", e);
-            try {
-                socket.close();
-            } catch (Exception e2) {
-                // IGNORE
-            }
+    public void receive(Message message) {
+        logger.warn("received unexpected message from "
+                + message.getSource());
+    }
+
+    public Message handleRequest(Message request) throws Exception {
+        byte opcode = request.readByte();
+
+        if (opcode != OPCODE_NEIGHBOUR_INFO_REQUEST) {
+            throw new IOException("received illegal opcode " + opcode);
         }
+
+        Message reply = new Message();
+        node.getInfo().writeTo(reply);
+
+        return reply;
     }
 
 }
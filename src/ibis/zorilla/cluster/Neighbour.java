@@ -1,19 +1,16 @@
 package ibis.zorilla.cluster;
 
 import ibis.zorilla.Node;
+import ibis.zorilla.net.Message;
 import ibis.zorilla.net.Network;
 import ibis.zorilla.net.NodeInfo;
+import ibis.zorilla.util.SizeOf;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
-import ibis.smartsockets.virtual.VirtualSocket;
-
 public class Neighbour {
 
     /**
@@ -65,23 +62,20 @@ public class Neighbour {
     }
 
     void ping() {
-        VirtualSocket socket = null;
         try {
             NodeInfo oldInfo = getInfo();
-            socket = node.network().connect(oldInfo, Network.CLUSTER_SERVICE);
 
-            OutputStream out = socket.getOutputStream();
-            out.write(ClusterService.OPCODE_NEIGHBOUR_INFO_REQUEST);
-            out.flush();
+            Message request = new Message(SizeOf.BYTE);
+            request.writeByte(ClusterService.OPCODE_NEIGHBOUR_INFO_REQUEST);
 
-            ObjectInputStream in = new ObjectInputStream(socket
-                    .getInputStream());
+            Message reply = node.network().call(request, oldInfo,
+                    Network.CLUSTER_SERVICE);
 
             NodeInfo newInfo;
             try {
-                newInfo = (NodeInfo) in.readObject();
-            } catch (ClassNotFoundException e) {
-                throw new Exception("received unknown class", e);
+                newInfo = NodeInfo.readFrom(reply);
+            } finally {
+                reply.release();
             }
 
             if (!oldInfo.sameNodeAs(newInfo)) {
@@ -91,7 +85,7 @@ public class Neighbour {
                 return;
             }
 
-            // uses a new connection to the peer node
+            // uses the same connection to the peer node
             double rtt = node.vivaldiService().ping(newInfo);
 
             synchronized (this) {
@@ -116,14 +110,6 @@ public class Neighbour {
             synchronized (this) {
                 failures++;
             }
-        } finally {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    // IGNORE
-                }
-            }
         }
     }
 
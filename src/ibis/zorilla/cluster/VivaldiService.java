@@ -3,20 +3,20 @@ package ibis.zorilla.cluster;
 import ibis.util.ThreadPool;
 import ibis.zorilla.Node;
 import ibis.zorilla.Service;
+import ibis.zorilla.net.Message;
+import ibis.zorilla.net.MessageHandler;
 import ibis.zorilla.net.Network;
+import ibis.zorilla.net.NetworkException;
 import ibis.zorilla.net.NodeInfo;
+import ibis.zorilla.util.SizeOf;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
-import ibis.smartsockets.virtual.VirtualSocket;
-
-public class VivaldiService implements Service, Runnable {
+public class VivaldiService implements Service, Runnable, MessageHandler {
 
     // how long do we wait for a connection
     public static final int CONNECTION_TIMEOUT = 10 * 1000;
@@ -35,6 +35,8 @@ public class VivaldiService implements Service, Runnable {
     public VivaldiService(Node node) throws IOException {
         this.node = node;
         this.coordinates = new Coordinates();
+
+        node.network().register(this, Network.VIVALDI_SERVICE);
     }
 
     public double ping(NodeInfo peer) throws IOException {
@@ -44,36 +46,34 @@ public class VivaldiService implements Service, Runnable {
     private double ping(NodeInfo peer, boolean updateCoordinates)
             throws IOException {
         double result = Double.MAX_VALUE;
-
-        VirtualSocket socket = node.network().connect(peer,
-                Network.VIVALDI_SERVICE);
-        socket.setTcpNoDelay(true);
-
-        InputStream in = socket.getInputStream();
-        OutputStream out = socket.getOutputStream();
-
-        // get coordinates from peer
-        byte[] coordinateBytes = new byte[Coordinates.SIZE];
-        int remaining = Coordinates.SIZE;
-        int offset = 0;
-        while (remaining > 0) {
-            int read = in.read(coordinateBytes, offset, remaining);
-            if (read == -1) {
-                throw new IOException("could not read Coordinates");
-            }
-            offset += read;
-            remaining -= read;
-        }
-        Coordinates remoteCoordinates = new Coordinates(coordinateBytes);
+        Coordinates remoteCoordinates = null;
 
         for (int i = 0; i < TRIES; i++) {
+            Message request = new Message(SizeOf.INT);
+            request.writeInt(i);
+
             long start = System.nanoTime();
-            out.write(i);
-            out.flush();
-            int reply = in.read();
+            Message reply;
+            try {
+                reply = node.network().call(request, peer,
+                        Network.VIVALDI_SERVICE);
+            } catch (NetworkException e) {
+                throw new IOException("ping failed: " + e);
+            }
             long end = System.nanoTime();
-            if (reply != i) {
-                throw new IOException("ping failed, wrong reply: " + reply);
+
+            try {
+                int echo = reply.readInt();
+                if (echo != i) {
+                    throw new IOException("ping failed, wrong reply: " + echo);
+                }
+
+                // get coordinates from peer
+                byte[] coordinateBytes = new byte[Coordinates.SIZE];
+                reply.readArray(coordinateBytes);
+                remoteCoordinates = new Coordinates(coordinateBytes);
+            } finally {
+                reply.release();
             }
 
             long time = end - start;
@@ -83,7 +83,6 @@ public class VivaldiService implements Service, Runnable {
                 result = rtt;
             }
         }
-        socket.close();
 
         if (updateCoordinates) {
             updateCoordinates(remoteCoordinates, result);
@@ -94,28 +93,19 @@ public class VivaldiService implements Service, Runnable {
         return result;
     }
 
-    public void handleConnection(VirtualSocket socket) {
-        Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-        try {
-            socket.setTcpNoDelay(true);
+    public void receive(Message message) {
+        logger.warn("received unexpected message from "
+                + message.getSource());
+    }
 
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+    public Message handleRequest(Message request) throws Exception {
+        Message reply = new Message(SizeOf.INT + Coordinates.SIZE);
 
-            // send coordinates
-            out.write(getCoordinates().toBytes());
-            out.flush();
+        // echo ping number, send coordinates
+        reply.writeInt(request.readInt());
+        reply.writeArray(getCoordinates().toBytes());
 
-            for (int i = 0; i < TRIES; i++) {
-                int read = in.read();
-                out.write(read);
-                out.flush();
-            }
-            socket.close();
-        } catch (IOException e) {
-            logger.error("error on handling ping", e);
-        }
-        Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+        return reply;
     }
 
     public void start() {
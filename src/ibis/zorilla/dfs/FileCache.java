@@ -0,0 +1,259 @@
+package ibis.zorilla.dfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Node wide cache of files, keyed by the hash of their content. Files are
+ * added to and taken from the cache using hard links where possible, so a file
+ * present in the cache is never transferred or copied again. The least
+ * recently used files are removed from the cache once its total size exceeds
+ * the maximum.
+ */
+public final class FileCache {
+
+    private static final Logger logger = Logger.getLogger(FileCache.class);
+
+    // java.nio.file.Files.createLink(Path, Path) and File.toPath(), only
+    // available on Java 7 and up, so looked up by reflection. null if not
+    // available, in which case files are always copied
+    private static final Method createLink;
+
+    private static final Method toPath;
+
+    static {
+        Method link = null;
+        Method path = null;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> files = Class.forName("java.nio.file.Files");
+            link = files.getMethod("createLink", pathClass, pathClass);
+            path = File.class.getMethod("toPath");
+        } catch (Exception e) {
+            logger.info("hard links not supported by this JVM, copying files"
+                    + " instead");
+            link = null;
+            path = null;
+        }
+        createLink = link;
+        toPath = path;
+    }
+
+    private static class Entry {
+        private final File file;
+
+        private final long size;
+
+        // number of links/copies currently being made of this file
+        private int users = 0;
+
+        Entry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final File dir;
+
+    private final long maxSize;
+
+    // access ordered, least recently used first
+    private final LinkedHashMap<Hash, Entry> entries;
+
+    private long size = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * Creates a cache in the given directory. Any files left in this directory
+     * (by a previous run) are removed.
+     *
+     * @param maxSize
+     *            maximum total size of the files in the cache (in bytes), 0 to
+     *            disable the cache
+     */
+    public FileCache(File dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+
+        entries = new LinkedHashMap<Hash, Entry>(16, 0.75f, true);
+
+        dir.mkdirs();
+        if (!dir.isDirectory()) {
+            throw new IOException("could not create cache dir " + dir);
+        }
+
+        File[] leftovers = dir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Hard links the given file to the given destination. If that is not
+     * possible (for instance because both are on different file systems) the
+     * file is copied instead.
+     */
+    public static void link(File source, File destination) throws IOException {
+        destination.delete();
+
+        if (createLink != null) {
+            try {
+                createLink.invoke(null, toPath.invoke(destination), toPath
+                        .invoke(source));
+                return;
+            } catch (InvocationTargetException e) {
+                logger.debug("could not link " + source + " to "
+                        + destination + ", copying instead", e.getCause());
+            } catch (IllegalAccessException e) {
+                logger.debug("could not link " + source + " to "
+                        + destination + ", copying instead", e);
+            }
+            destination.delete();
+        }
+
+        copy(source, destination);
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(destination).getChannel();
+            try {
+                // let the OS copy the data, without passing it through java
+                long position = 0;
+                long length = in.size();
+                while (position < length) {
+                    position += in.transferTo(position, length - position,
+                            out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private File fileFor(Hash hash) {
+        return new File(dir, hash.toString());
+    }
+
+    /**
+     * Makes the file with the given content hash available at the given
+     * destination, if it is present in the cache.
+     *
+     * @return true if the file was in the cache, false otherwise
+     */
+    public boolean get(Hash hash, File destination) throws IOException {
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(hash);
+            if (entry == null) {
+                misses++;
+                return false;
+            }
+            hits++;
+            // prevent removal while we link
+            entry.users++;
+        }
+
+        try {
+            link(entry.file, destination);
+        } finally {
+            synchronized (this) {
+                entry.users--;
+            }
+        }
+        logger.debug("took " + destination + " from cache");
+        return true;
+    }
+
+    /**
+     * Adds the given file to the cache. The file should not be changed
+     * afterwards.
+     */
+    public void add(Hash hash, File file) {
+        long length = file.length();
+
+        if (length > maxSize) {
+            return;
+        }
+
+        synchronized (this) {
+            if (entries.containsKey(hash)) {
+                return;
+            }
+        }
+
+        File cacheFile = fileFor(hash);
+        try {
+            link(file, cacheFile);
+        } catch (IOException e) {
+            logger.warn("could not add " + file + " to cache", e);
+            cacheFile.delete();
+            return;
+        }
+        cacheFile.deleteOnExit();
+
+        synchronized (this) {
+            if (entries.containsKey(hash)) {
+                // added concurrently, same file name so nothing to remove
+                return;
+            }
+            entries.put(hash, new Entry(cacheFile, length));
+            size += length;
+
+            evict();
+        }
+        logger.debug("added " + file + " to cache as " + cacheFile);
+    }
+
+    // remove least recently used files until the cache fits
+    private synchronized void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (size > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            if (entry.users > 0) {
+                continue;
+            }
+
+            iterator.remove();
+            size -= entry.size;
+            // links made earlier keep the data alive
+            entry.file.delete();
+
+            logger.debug("removed " + entry.file + " from cache");
+        }
+    }
+
+    public synchronized Map<String, String> getStats() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+
+        result.put("files", Integer.toString(entries.size()));
+        result.put("size", Long.toString(size));
+        result.put("max.size", Long.toString(maxSize));
+        result.put("hits", Long.toString(hits));
+        result.put("misses", Long.toString(misses));
+
+        return result;
+    }
+
+}
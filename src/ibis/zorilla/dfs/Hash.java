@@ -5,6 +5,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -19,21 +21,25 @@ public final class Hash implements Serializable {
 
     private static final Logger logger = Logger.getLogger(Hash.class);
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final byte[] hash;
 
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("could not load SHA-1 algorithmn");
+        }
+    }
+
     public Hash(File file) throws IOException {
-        MessageDigest digest;
+        MessageDigest digest = newDigest();
 
         FileInputStream in = new FileInputStream(file);
 
         try {
-            try {
-                digest = MessageDigest.getInstance("SHA-1");
-            } catch (NoSuchAlgorithmException e) {
-                throw new IOException("could not load SHA-1 algorithmn");
-            }
-
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[BUFFER_SIZE];
 
             while (true) {
                 int read = in.read(buffer);
@@ -49,6 +55,67 @@ public final class Hash implements Serializable {
         }
     }
 
+    /**
+     * Hash of a piece of a file.
+     */
+    public Hash(File file, long offset, long length) throws IOException {
+        MessageDigest digest = newDigest();
+
+        FileChannel in = new FileInputStream(file).getChannel();
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = offset;
+            long end = offset + length;
+
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                int read = in.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("file shorter than expected");
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+            hash = digest.digest();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hash of (a part of) an array of bytes.
+     */
+    public Hash(byte[] data, int offset, int length) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data, offset, length);
+        hash = digest.digest();
+    }
+
+    /**
+     * Hash of the remaining bytes in a buffer (for instance, a memory mapped
+     * piece of a file).
+     */
+    public Hash(ByteBuffer data) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        hash = digest.digest();
+    }
+
+    /**
+     * Hash of a list of hashes (for instance, the root of a Merkle tree).
+     */
+    public Hash(Hash[] children) throws IOException {
+        MessageDigest digest = newDigest();
+        for (Hash child : children) {
+            digest.update(child.hash);
+        }
+        hash = digest.digest();
+    }
+
     public boolean equals(Object object) {
         if (object instanceof Hash) {
             return equals((Hash) object);
@@ -69,6 +136,12 @@ public final class Hash implements Serializable {
         return true;
     }
 
+    public int hashCode() {
+        // a hash is pretty random already
+        return ((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16)
+                | ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+    }
+
     public String toString() {
         return new BigInteger(hash).toString(16);
     }
@@ -0,0 +1,243 @@
+package ibis.zorilla.dfs;
+
+import ibis.util.ThreadPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Two level Merkle tree of a file: a hash for each chunk of the file, and a
+ * root hash over all chunk hashes. Chunk hashes are computed in parallel,
+ * reading the file using memory mapping. Trees are cached, keyed on the path,
+ * size and modification time of the file, so hashing a file again is free as
+ * long as it does not change.
+ */
+public final class HashTree {
+
+    // maximum number of trees cached
+    public static final int CACHE_SIZE = 100;
+
+    private static final Logger logger = Logger.getLogger(HashTree.class);
+
+    // least recently used trees are removed first
+    private static final Map<String, HashTree> cache = new LinkedHashMap<String, HashTree>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, HashTree> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final File file;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final int chunkSize;
+
+    private final Hash[] chunkHashes;
+
+    private final Hash root;
+
+    // state used while computing chunk hashes
+    private int nextChunk = 0;
+
+    private int activeHashers = 0;
+
+    private IOException error = null;
+
+    private static String key(File file, long size, long lastModified,
+            int chunkSize) {
+        return file.getAbsolutePath() + ":" + size + ":" + lastModified + ":"
+                + chunkSize;
+    }
+
+    /**
+     * Returns the hash tree of the given file, from the cache if the file did
+     * not change since it was last hashed.
+     */
+    public static HashTree of(File file, int chunkSize) throws IOException {
+        String key = key(file, file.length(), file.lastModified(), chunkSize);
+
+        synchronized (cache) {
+            HashTree result = cache.get(key);
+            if (result != null) {
+                logger.debug("hash of " + file + " found in cache");
+                return result;
+            }
+        }
+
+        HashTree result = new HashTree(file, chunkSize);
+
+        synchronized (cache) {
+            cache.put(key(file, result.size, result.lastModified, chunkSize),
+                    result);
+        }
+
+        return result;
+    }
+
+    private HashTree(File file, int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IOException("invalid chunk size: " + chunkSize);
+        }
+
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.lastModified = file.lastModified();
+        this.size = file.length();
+
+        chunkHashes = new Hash[(int) ((size + chunkSize - 1) / chunkSize)];
+
+        int hashers = Math.min(chunkHashes.length, Runtime.getRuntime()
+                .availableProcessors());
+
+        synchronized (this) {
+            activeHashers = hashers;
+        }
+
+        for (int i = 1; i < hashers; i++) {
+            ThreadPool.createNew(new Runnable() {
+                public void run() {
+                    hashChunks();
+                }
+            }, "chunk hasher");
+        }
+        if (hashers > 0) {
+            hashChunks();
+        }
+
+        synchronized (this) {
+            while (activeHashers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        root = new Hash(chunkHashes);
+
+        if (file.length() != size || file.lastModified() != lastModified) {
+            throw new IOException("file " + file + " changed while hashing");
+        }
+    }
+
+    // returns the next chunk to hash, or -1 if there is none
+    private synchronized int nextChunk() {
+        if (error != null || nextChunk >= chunkHashes.length) {
+            return -1;
+        }
+        return nextChunk++;
+    }
+
+    private synchronized void setChunkHash(int chunk, Hash hash) {
+        chunkHashes[chunk] = hash;
+    }
+
+    private synchronized void setError(IOException error) {
+        if (this.error == null) {
+            this.error = error;
+        }
+    }
+
+    // hashes chunks until there are no more
+    private void hashChunks() {
+        FileChannel channel = null;
+        try {
+            channel = new FileInputStream(file).getChannel();
+
+            while (true) {
+                int chunk = nextChunk();
+                if (chunk == -1) {
+                    return;
+                }
+                long offset = getChunkOffset(chunk);
+                setChunkHash(chunk, new Hash(channel.map(
+                        FileChannel.MapMode.READ_ONLY, offset,
+                        getChunkLength(chunk))));
+            }
+        } catch (IOException e) {
+            setError(e);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // IGNORE
+                }
+            }
+            synchronized (this) {
+                activeHashers--;
+                notifyAll();
+            }
+        }
+    }
+
+    public Hash getRoot() {
+        return root;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getNrOfChunks() {
+        return chunkHashes.length;
+    }
+
+    public synchronized Hash[] getChunkHashes() {
+        return chunkHashes.clone();
+    }
+
+    public synchronized Hash getChunkHash(int chunk) {
+        return chunkHashes[chunk];
+    }
+
+    public long getChunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public int getChunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - getChunkOffset(chunk));
+    }
+
+    /**
+     * Returns true if the file still has the size and modification time it
+     * had when it was hashed.
+     */
+    public boolean isCurrent() {
+        return file.length() == size && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Checks if the given chunk of the file still has the same content as when
+     * it was hashed. Only rehashes the chunk if the file might have changed.
+     */
+    public boolean verifyChunk(int chunk) throws IOException {
+        if (isCurrent()) {
+            return true;
+        }
+        return new Hash(file, getChunkOffset(chunk), getChunkLength(chunk))
+                .equals(getChunkHash(chunk));
+    }
+
+    public String toString() {
+        return file + " (" + chunkHashes.length + " chunks, root " + root
+                + ")";
+    }
+}
@@ -1,5 +1,6 @@
 package ibis.zorilla.gossip;
 
+import ibis.zorilla.net.Message;
 import ibis.zorilla.net.NodeInfo;
 
 import java.io.IOException;
@@ -23,6 +24,27 @@ final class GossipCacheEntry implements Serializable {
         expirationTime = System.currentTimeMillis() + TIMEOUT;
     }
 
+    private GossipCacheEntry(NodeInfo info, int age, long expirationTime) {
+        this.info = info;
+        this.age = age;
+        this.expirationTime = expirationTime;
+    }
+
+    static GossipCacheEntry readFrom(Message message) throws IOException {
+        NodeInfo info = NodeInfo.readFrom(message);
+        int age = message.readVarInt();
+        long expirationTime = message.readLong() + System.currentTimeMillis();
+
+        return new GossipCacheEntry(info, age, expirationTime);
+    }
+
+    // same as writeObject, but using the (much more compact) message codec
+    void writeTo(Message message) throws IOException {
+        info.writeTo(message);
+        message.writeVarInt(age);
+        message.writeLong(expirationTime - System.currentTimeMillis());
+    }
+
     public boolean hasExpired() {
         return System.currentTimeMillis() > expirationTime;
     }
@@ -1,7 +1,9 @@
 package ibis.zorilla.gossip;
 
+import ibis.zorilla.net.Message;
 import ibis.zorilla.net.NodeInfo;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -47,4 +49,45 @@ class GossipMessage implements Serializable {
         return algorithmName;
     }
 
+    /**
+     * Reads a gossip message written with {@link #writeTo(Message)}.
+     */
+    static GossipMessage readFrom(Message message) throws IOException {
+        NodeInfo sender = NodeInfo.readFrom(message);
+        NodeInfo receiver = NodeInfo.readFrom(message);
+        boolean replyRequested = message.readBoolean();
+        String algorithmName = message.readString();
+
+        int nrOfEntries = message.readVarInt();
+        // every entry takes at least one byte
+        if (nrOfEntries < 0 || nrOfEntries > message.remaining()) {
+            throw new IOException("invalid number of gossip entries: "
+                    + nrOfEntries);
+        }
+        List<GossipCacheEntry> entries = new ArrayList<GossipCacheEntry>(
+                nrOfEntries);
+        for (int i = 0; i < nrOfEntries; i++) {
+            entries.add(GossipCacheEntry.readFrom(message));
+        }
+
+        return new GossipMessage(sender, receiver, entries, replyRequested,
+                algorithmName);
+    }
+
+    /**
+     * Writes this message in a compact binary form (instead of using
+     * serialization).
+     */
+    void writeTo(Message message) throws IOException {
+        sender.writeTo(message);
+        receiver.writeTo(message);
+        message.writeBoolean(replyRequested);
+        message.writeString(algorithmName);
+
+        message.writeVarInt(entries.size());
+        for (GossipCacheEntry entry : entries) {
+            entry.writeTo(message);
+        }
+    }
+
 }
@@ -1,11 +1,7 @@
 package ibis.zorilla.gossip;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -14,15 +10,16 @@ import java.util.Random;
 
 import org.apache.log4j.Logger;
 
-import ibis.smartsockets.virtual.VirtualSocket;
 import ibis.zorilla.Config;
 import ibis.zorilla.Node;
 import ibis.zorilla.Service;
+import ibis.zorilla.net.Message;
+import ibis.zorilla.net.MessageHandler;
 import ibis.zorilla.net.Network;
 import ibis.zorilla.net.NodeInfo;
 import vu.platform934.analysis.Chart;
 
-public class GossipService implements Service {
+public class GossipService implements Service, MessageHandler {
 
     private static final Logger logger = Logger.getLogger(GossipService.class);
 
@@ -124,6 +121,8 @@ public class GossipService implements Service {
         }
 
         mainAlgorithm = arrg;
+
+        node.network().register(this, Network.GOSSIP_SERVICE);
     }
 
     public void start() {
@@ -150,23 +149,22 @@ public class GossipService implements Service {
 
         try {
             logger.debug("doing tcp request to " + request.getReceiver());
-            VirtualSocket socket = node.network().connect(
-                    request.getReceiver(), Network.GOSSIP_SERVICE);
-
-            ObjectOutputStream out = new ObjectOutputStream(
-                    new BufferedOutputStream(socket.getOutputStream()));
-            out.writeObject(request);
-            out.flush();
 
-            logger.debug("send request, receiving reply");
+            Message requestMessage = new Message();
+            request.writeTo(requestMessage);
 
-            ObjectInputStream in = new ObjectInputStream(
-                    new BufferedInputStream(socket.getInputStream()));
-            GossipMessage reply = (GossipMessage) in.readObject();
-            socket.close();
+            Message replyMessage = node.network().call(requestMessage,
+                    request.getReceiver(), Network.GOSSIP_SERVICE, timeout);
 
             logger.debug("reply received");
 
+            GossipMessage reply;
+            try {
+                reply = GossipMessage.readFrom(replyMessage);
+            } finally {
+                replyMessage.release();
+            }
+
             if (!request.getReceiver().getID()
                     .equals(reply.getSender().getID())) {
                 // logger.info("got gossip reply from wrong node, " +
@@ -180,60 +178,49 @@ public class GossipService implements Service {
         }
     }
 
-    public void handleConnection(VirtualSocket socket) {
-        try {
-
-            if (random.nextDouble() < messageLossFraction) {
-                socket.close();
-                logger.warn("Request message lost! (at random)");
-                return;
-            }
+    public void receive(Message message) {
+        logger.warn("received unexpected message from "
+                + message.getSource());
+    }
 
-            ObjectInputStream in = new ObjectInputStream(
-                    new BufferedInputStream(socket.getInputStream()));
-            GossipMessage request = (GossipMessage) in.readObject();
-
-            long now = System.currentTimeMillis();
-            if (now > disconnectTime && now < reconnectTime) {
-                if (!wanDisconnect
-                        || !request.getSender().getClusterName().equals(
-                                request.getReceiver().getClusterName())) {
-                    socket.close();
-                    logger.warn("Request not handled: we are disconnected");
-                    return;
-                } else {
-                    logger.info("allowing local request while disconnected");
-                }
-            }
+    public Message handleRequest(Message requestMessage) throws Exception {
+        if (random.nextDouble() < messageLossFraction) {
+            logger.warn("Request message lost! (at random)");
+            throw new IOException("request message lost");
+        }
 
-            GossipAlgorithm algorithm = algorithms.get(request
-                    .getAlgorithmName());
+        GossipMessage request = GossipMessage.readFrom(requestMessage);
 
-            if (algorithm == null) {
-                throw new IOException("could not find algorithm: "
-                        + request.getAlgorithmName());
+        long now = System.currentTimeMillis();
+        if (now > disconnectTime && now < reconnectTime) {
+            if (!wanDisconnect
+                    || !request.getSender().getClusterName().equals(
+                            request.getReceiver().getClusterName())) {
+                logger.warn("Request not handled: we are disconnected");
+                throw new IOException("disconnected");
+            } else {
+                logger.info("allowing local request while disconnected");
             }
+        }
 
-            GossipMessage reply = algorithm.handleRequest(request);
+        GossipAlgorithm algorithm = algorithms.get(request.getAlgorithmName());
 
-            if (random.nextDouble() < messageLossFraction) {
-                logger.warn("Reply message lost! (at random)");
-            } else {
-                ObjectOutputStream out = new ObjectOutputStream(
-                        new BufferedOutputStream(socket.getOutputStream()));
-                out.writeObject(reply);
-                out.flush();
-            }
+        if (algorithm == null) {
+            throw new IOException("could not find algorithm: "
+                    + request.getAlgorithmName());
+        }
 
-            socket.close();
-        } catch (Throwable e) {
-            logger.error("error on handling request", e);
-            try {
-                socket.close();
-            } catch (IOException e2) {
-                // IGNORE
-            }
+        GossipMessage reply = algorithm.handleRequest(request);
+
+        if (random.nextDouble() < messageLossFraction) {
+            logger.warn("Reply message lost! (at random)");
+            throw new IOException("reply message lost");
         }
+
+        Message replyMessage = new Message();
+        reply.writeTo(replyMessage);
+
+        return replyMessage;
     }
 
     NodeInfo getBootstrapNode() {
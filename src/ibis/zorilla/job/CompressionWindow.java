@@ -0,0 +1,46 @@
+package ibis.zorilla.job;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The last (up to) 32KB of data sent over a compressed output stream. Every
+ * message of a stream is compressed separately, using the window as preset
+ * dictionary, so repetitive output compresses well even in small messages.
+ * Sender and receiver update their window with exactly the same data.
+ */
+final class CompressionWindow {
+
+    // maximum size of a deflate dictionary
+    static final int SIZE = 32 * 1024;
+
+    private final byte[] window = new byte[SIZE];
+
+    private int length = 0;
+
+    void update(byte[] data, int offset, int length) {
+        if (length >= SIZE) {
+            System.arraycopy(data, offset + length - SIZE, window, 0, SIZE);
+            this.length = SIZE;
+            return;
+        }
+
+        int keep = Math.min(this.length, SIZE - length);
+        System.arraycopy(window, this.length - keep, window, 0, keep);
+        System.arraycopy(data, offset, window, keep, length);
+        this.length = keep + length;
+    }
+
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    void setDictionary(Deflater deflater) {
+        deflater.setDictionary(window, 0, length);
+    }
+
+    void setDictionary(Inflater inflater) {
+        inflater.setDictionary(window, 0, length);
+    }
+
+}
@@ -3,6 +3,8 @@ package ibis.zorilla.job;
 import ibis.ipl.ReceivePortIdentifier;
 import ibis.zorilla.net.NodeInfo;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
@@ -26,6 +28,12 @@ public class Constituent implements Serializable {
 
     private int maxNrOfWorkers = 0;
 
+    // version of the job state in which this constituent last changed
+    private long version = 0;
+
+    // set when removed from the job, workers can no longer change after that
+    private transient boolean removed = false;
+
     Constituent(UUID id, ReceivePortIdentifier receivePort, NodeInfo info) {
         this.id = id;
         this.receivePort = receivePort;
@@ -40,6 +48,18 @@ public class Constituent implements Serializable {
         return System.currentTimeMillis() > expirationDate;
     }
 
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void setVersion(long version) {
+        this.version = version;
+    }
+
+    synchronized long getExpirationDate() {
+        return expirationDate;
+    }
+
     synchronized void resetExpirationDate() {
         expirationDate = System.currentTimeMillis() + EXPIRATION_TIMEOUT;
     }
@@ -52,19 +72,50 @@ public class Constituent implements Serializable {
         return receivePort;
     }
 
-    synchronized void addWorker(UUID id) {
-        workers.add(id);
+    /**
+     * @return true if the worker was added
+     */
+    synchronized boolean addWorker(UUID id) {
+        if (removed) {
+            return false;
+        }
+        return workers.add(id);
     }
 
-    synchronized void removeWorker(UUID id) {
-        workers.remove(id);
+    /**
+     * @return true if the worker was removed
+     */
+    synchronized boolean removeWorker(UUID id) {
+        if (removed) {
+            return false;
+        }
+        return workers.remove(id);
     }
 
-    synchronized void setWorkers(UUID[] workers) {
+    /**
+     * @return the change in the number of workers
+     */
+    synchronized int setWorkers(UUID[] workers) {
+        if (removed) {
+            return 0;
+        }
+        int oldNrOfWorkers = this.workers.size();
+
         this.workers = new HashSet<UUID>();
         for (UUID worker : workers) {
             this.workers.add(worker);
         }
+        return this.workers.size() - oldNrOfWorkers;
+    }
+
+    /**
+     * Marks this constituent as removed from the job.
+     * 
+     * @return the number of workers it had
+     */
+    synchronized int remove() {
+        removed = true;
+        return workers.size();
     }
 
     public synchronized int nrOfWorkers() {
@@ -79,6 +130,13 @@ public class Constituent implements Serializable {
         this.maxNrOfWorkers = maxNrOfWorkers;
     }
 
+    // state updates are written without holding the lock of the primary, so
+    // make sure the set of workers does not change while writing it
+    private synchronized void writeObject(ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+    }
+
     public String toString() {
         return info.getName();
     }
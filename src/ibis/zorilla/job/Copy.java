@@ -29,8 +29,10 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
@@ -72,6 +74,11 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
 
     private CopyOutputStream stderr;
 
+    // standard out/err of each local worker, if split
+    private final Map<UUID, CopyOutputStream> workerStdouts;
+
+    private final Map<UUID, CopyOutputStream> workerStderrs;
+
     private InputFile stdin;
 
     // *** DISTRIBUTED STATE *** \\
@@ -113,6 +120,9 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
 
     private long lastStateUpdate = 0;
 
+    // version of the state received from the primary last
+    private long stateVersion = 0;
+
     // what did we tell the primary last time...
     private int sendMaxNrOfWorkers = 0;
 
@@ -129,6 +139,8 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
         primary = advert.getPrimaryReceivePort();
 
         localWorkers = new HashMap<UUID, Worker>();
+        workerStdouts = new HashMap<UUID, CopyOutputStream>();
+        workerStderrs = new HashMap<UUID, CopyOutputStream>();
 
         ibis = Factory.createIbis(jobID.toString(), node);
 
@@ -181,45 +193,61 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
         logger.warn(this.toString() + ": " + message, e);
     }
 
-    @SuppressWarnings("unchecked")
-    private synchronized void readDynamicState(ObjectInput in)
-            throws IOException, Exception {
+    private void readDynamicState(ObjectInput in) throws IOException,
+            Exception {
         try {
-            status = (Map<String, String>) in.readObject();
-            attributes = (JobAttributes) in.readObject();
-            phase = (JobPhase) in.readObject();
-            constituents = (Map<UUID, Constituent>) in.readObject();
-            moreWorkersNeeded = in.readBoolean();
-
-            long now = System.currentTimeMillis();
-
-            end(now + in.readLong());
-
-            lastStateUpdate = now;
-
+            applyState(StateUpdate.readFrom(in));
         } catch (ClassNotFoundException e) {
             throw new Exception("error while reading state", e);
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private synchronized void readDynamicState(Message in)
-            throws IOException, Exception {
-        try {
-            status = (Map<String, String>) in.readObject();
-            attributes = (JobAttributes) in.readObject();
-            phase = (JobPhase) in.readObject();
-            constituents = (Map<UUID, Constituent>) in.readObject();
-            moreWorkersNeeded = in.readBoolean();
+    /**
+     * Applies a (snapshot or delta of the) state received from the primary.
+     * Stale states are ignored. If a delta is based on a version we do not
+     * have, a complete state update is requested later.
+     */
+    private synchronized void applyState(StateUpdate update) throws Exception {
+        if (update.version < stateVersion) {
+            log("ignoring stale state " + update + ", have " + stateVersion);
+            return;
+        }
 
-            long now = System.currentTimeMillis();
+        if (!update.snapshot && update.base > stateVersion) {
+            log("missed state update (got " + update + ", have "
+                    + stateVersion + ")");
+            // forces a state request
+            lastStateUpdate = 0;
+            return;
+        }
 
-            end(now + in.readLong());
+        if (update.snapshot) {
+            constituents = update.constituents;
+        } else {
+            constituents.putAll(update.constituents);
+            for (UUID constituentID : update.removed) {
+                constituents.remove(constituentID);
+            }
+        }
 
-            lastStateUpdate = now;
-        } catch (ClassNotFoundException e) {
-            throw new Exception("error while reading state", e);
+        if (update.attributes != null) {
+            attributes = update.attributes;
         }
+
+        stateVersion = update.version;
+        status = update.status;
+        phase = update.phase;
+        moreWorkersNeeded = update.moreWorkersNeeded;
+
+        long now = System.currentTimeMillis();
+
+        end(now + update.remaining);
+
+        lastStateUpdate = now;
+    }
+
+    synchronized long getStateVersion() {
+        return stateVersion;
     }
 
     private synchronized boolean moreWorkersNeeded() {
@@ -308,6 +336,7 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
 
         call.writeInt(Primary.CREATE_LOG_FILE);
         call.writeObject(id);
+        call.writeLong(getStateVersion());
         call.writeString(fileName);
 
         call.call();
@@ -332,6 +361,7 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
 
         call.writeInt(Primary.GET_OUTPUT_FILE);
         call.writeObject(id);
+        call.writeLong(getStateVersion());
         call.writeString(virtualFilePath);
 
         call.call();
@@ -388,14 +418,91 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
         return attributes.getSizeProperty(name);
     }
 
-    @Override
-    protected synchronized CopyOutputStream getStdout() throws Exception {
+    private synchronized CopyOutputStream getStdout() throws Exception {
         if (!initialized) {
             throw new Exception("copy not initialized");
         }
         return stdout;
     }
 
+    @Override
+    protected CopyOutputStream getStdout(UUID worker) throws Exception {
+        return getOutput(worker, false);
+    }
+
+    @Override
+    protected CopyOutputStream getStderr(UUID worker) throws Exception {
+        return getOutput(worker, true);
+    }
+
+    // returns the shared standard out/err of this copy, or a stream for the
+    // given worker if the output is split
+    private CopyOutputStream getOutput(UUID worker, boolean stderr)
+            throws Exception {
+        Map<UUID, CopyOutputStream> outputs;
+
+        synchronized (this) {
+            if (!initialized) {
+                throw new Exception("copy not initialized");
+            }
+
+            CopyOutputStream shared = stderr ? this.stderr : this.stdout;
+            if (shared != null) {
+                return shared;
+            }
+
+            if (!getBooleanAttribute(stderr ? JobAttributes.SPLIT_STDERR
+                    : JobAttributes.SPLIT_STDOUT)) {
+                return null;
+            }
+
+            outputs = stderr ? workerStderrs : workerStdouts;
+
+            CopyOutputStream result = outputs.get(worker);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        Call call = endPoint.call(primary);
+
+        call.writeInt(Primary.GET_WORKER_OUTPUT);
+        call.writeObject(id);
+        call.writeLong(getStateVersion());
+        call.writeObject(worker);
+        call.writeBoolean(stderr);
+
+        call.call();
+
+        CopyOutputStream result = new CopyOutputStream(call, this);
+
+        readDynamicState(call);
+        call.finish();
+
+        synchronized (this) {
+            outputs.put(worker, result);
+        }
+
+        return result;
+    }
+
+    private void closeWorkerOutput(UUID worker) throws IOException {
+        CopyOutputStream stdout;
+        CopyOutputStream stderr;
+
+        synchronized (this) {
+            stdout = workerStdouts.remove(worker);
+            stderr = workerStderrs.remove(worker);
+        }
+
+        if (stdout != null) {
+            stdout.close();
+        }
+        if (stderr != null) {
+            stderr.close();
+        }
+    }
+
     @Override
     protected synchronized InputFile getStdin() throws Exception {
         if (!initialized) {
@@ -404,8 +511,7 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
         return stdin;
     }
 
-    @Override
-    protected synchronized CopyOutputStream getStderr() throws Exception {
+    private synchronized CopyOutputStream getStderr() throws Exception {
         if (!initialized) {
             throw new Exception("copy not initialized");
         }
@@ -420,9 +526,16 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
                 log("copy received message with unknown opcode: " + opcode);
             }
 
-            readDynamicState(message);
+            StateUpdate update = StateUpdate.readFrom(message);
+            // nodes we should pass this update on to
+            int fanout = message.readInt();
+            ReceivePortIdentifier[] forwards = (ReceivePortIdentifier[]) message
+                    .readObject();
             message.finish();
 
+            applyState(update);
+
+            update.forward(endPoint, forwards, fanout);
         } catch (Exception e) {
             log("exception on handling message", e);
         }
@@ -450,7 +563,8 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
             UUID workerID = Node.generateUUID();
             Worker worker = new Worker(this, workerID, node, deadline);
 
-            String hostname = node.jobService().addWorker(worker);
+            String hostname = node.jobService().addWorker(worker,
+                    workerResources, nrOfWorkers - i);
 
             if (hostname == null) {
                 logger.debug("cannot claim resources");
@@ -490,7 +604,9 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
                 log("got DESTROY workers request from primary");
                 synchronized (this) {
                     for (Worker worker : localWorkers.values()) {
-                        worker.signal(0); // tell the worker to go away
+                        // tell the worker to go away, releases its resources
+                        // if it was not started yet
+                        worker.abort();
                     }
 
                     localWorkers.clear();
@@ -600,7 +716,8 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
         int nrOfWorkers = 0;
 
         if (node.jobService().resourcesAvailable(workerResources)) {
-            nrOfWorkers = node.jobService().freeNodes();
+            nrOfWorkers = node.jobService().nrOfWorkersAvailable(this,
+                    workerResources);
         }
 
         logger.debug("possible number of NEW workers: " + nrOfWorkers);
@@ -637,6 +754,7 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
 
         call.writeInt(Primary.UPDATE_MAX_NR_OF_WORKERS);
         call.writeObject(id);
+        call.writeLong(getStateVersion());
         call.writeInt(nrOfWorkers);
 
         call.call();
@@ -659,6 +777,7 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
 
         call.writeInt(Primary.REQUEST_STATE);
         call.writeObject(id);
+        call.writeLong(getStateVersion());
 
         call.call();
 
@@ -716,7 +835,8 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
                 workerID = Node.generateUUID();
                 worker = new Worker(this, workerID, node, deadline);
 
-                String hostname = node.jobService().addWorker(worker);
+                String hostname = node.jobService().addWorker(worker,
+                        workerResources);
 
                 if (hostname == null) {
                     log("cannot claim resources");
@@ -730,6 +850,7 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
             Call call = endPoint.call(primary);
             call.writeInt(Primary.NEW_WORKER);
             call.writeObject(id);
+            call.writeLong(getStateVersion());
             call.writeObject(workerID);
 
             call.call();
@@ -767,10 +888,13 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
                     localWorkers.remove(worker.id());
                 }
 
+                closeWorkerOutput(worker.id());
+
                 Call call = endPoint.call(primary);
 
                 call.writeInt(Primary.REMOVE_WORKER);
                 call.writeObject(id);
+                call.writeLong(getStateVersion());
                 call.writeObject(worker.id());
                 call.writeObject(worker.status());
                 call.writeInt(worker.exitStatus());
@@ -805,12 +929,23 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
             stderr.close();
         }
 
+        UUID[] workers;
+        synchronized (this) {
+            Set<UUID> ids = new HashSet<UUID>(workerStdouts.keySet());
+            ids.addAll(workerStderrs.keySet());
+            workers = ids.toArray(new UUID[0]);
+        }
+        for (UUID worker : workers) {
+            closeWorkerOutput(worker);
+        }
+
         logFile.close();
 
         // unregister
         Call call = endPoint.call(primary);
         call.writeInt(Primary.UNREGISTER);
         call.writeObject(id);
+        call.writeLong(getStateVersion());
         call.call();
 
         readDynamicState(call);
@@ -925,6 +1060,11 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
         return new EndPoint(name, receiver, ibis);
     }
 
+    @Override
+    Node getNode() {
+        return node;
+    }
+
     @Override
     public int getExitStatus() {
         return 0;
@@ -948,6 +1088,18 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
                 "can only read from standard out where job was submitted");
     }
 
+    @Override
+    public void readStdout(UUID worker, OutputStream out) throws Exception {
+        throw new Exception(
+                "can only read from standard out where job was submitted");
+    }
+
+    @Override
+    public void readStderr(UUID worker, OutputStream out) throws Exception {
+        throw new Exception(
+                "can only read from standard err where job was submitted");
+    }
+
  
 
     @Override
@@ -962,8 +1114,9 @@ public final class Copy extends ZorillaJob implements Receiver, Runnable {
     }
 
     @Override
-    public Constituent[] getConstituents() {
-        return new Constituent[0];
+    public synchronized Constituent[] getConstituents() {
+        return constituents.values().toArray(
+                new Constituent[constituents.size()]);
     }
 
 }
@@ -1,7 +1,9 @@
 package ibis.zorilla.job;
 
-import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePortIdentifier;
+import ibis.util.ThreadPool;
+import ibis.zorilla.Node;
+import ibis.zorilla.io.ObjectOutput;
 import ibis.zorilla.job.net.Call;
 import ibis.zorilla.job.net.EndPoint;
 import ibis.zorilla.job.net.Invocation;
@@ -11,7 +13,12 @@ import ibis.zorilla.job.net.WriteMessage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.Logger;
 
@@ -19,6 +26,15 @@ final class CopyOutputStream extends OutputStream implements Receiver {
 
     public static final int BUFFER_SIZE = 100 * 1024;
 
+    // writes are collected in batches of (at most) this size
+    public static final int BATCH_SIZE = 64 * 1024;
+
+    // maximum time data waits in a batch before it is sent (ms)
+    public static final long FLUSH_DELAY = 100;
+
+    // writers block if this many full batches are waiting to be sent
+    public static final int MAX_QUEUED_BATCHES = 16;
+
     private static final Logger logger = Logger
             .getLogger(CopyOutputStream.class);
 
@@ -30,6 +46,40 @@ final class CopyOutputStream extends OutputStream implements Receiver {
 
     private final EndPoint endPoint;
 
+    // if true, data is compressed (with deflate) before it is sent
+    private final boolean compressed;
+
+    // identifies this stream to the primary, which keeps a window for each
+    // stream sending compressed data
+    private final UUID senderID;
+
+    // only used by the flusher
+    private final Deflater deflater;
+
+    private final CompressionWindow window;
+
+    // batch currently being filled
+    private byte[] pending = new byte[BATCH_SIZE];
+
+    private int pendingLength = 0;
+
+    private long pendingSince;
+
+    // batches waiting to be sent by the flusher
+    private final LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+
+    // number of bytes written to, and sent by this stream
+    private long written = 0;
+
+    private long sent = 0;
+
+    private boolean closed = false;
+
+    private boolean flusherDone = false;
+
+    // error of the flusher, reported to the next writer
+    private IOException error = null;
+
     public CopyOutputStream(Call call, Copy copy) throws IOException, Exception {
         try {
 
@@ -38,6 +88,7 @@ final class CopyOutputStream extends OutputStream implements Receiver {
             virtualPath = call.readString();
             UUID id = (UUID) call.readObject();
             primary = (ReceivePortIdentifier) call.readObject();
+            compressed = call.readBoolean();
 
             endPoint = copy.newEndPoint(id.toString(), this);
 
@@ -45,34 +96,221 @@ final class CopyOutputStream extends OutputStream implements Receiver {
             throw new Exception("could not read bootstrap from call", e);
         }
 
+        senderID = Node.generateUUID();
+
+        if (compressed) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            window = new CompressionWindow();
+        } else {
+            deflater = null;
+            window = null;
+        }
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                flushBatches();
+            }
+        }, "output flusher for " + virtualPath);
     }
 
-    public synchronized void write(byte[] data, int offset, int length)
-            throws IOException {
-        logger.debug("sending data of length " + length + " to " + primary);
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+    }
 
-        if (length == 0) {
-            //Done already :-)
-            return;
+    // hand the pending batch to the flusher, waits if the flusher lags
+    private void enqueuePending() throws IOException {
+        while (queue.size() >= MAX_QUEUED_BATCHES && error == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
         }
 
-        WriteMessage message = endPoint.send(primary);
+        queue.add(ByteBuffer.wrap(pending, 0, pendingLength));
+        pending = new byte[BATCH_SIZE];
+        pendingLength = 0;
+        notifyAll();
+    }
+
+    // returns the next batches to send, or null if the stream is closed
+    private synchronized List<ByteBuffer> nextBatches() {
+        while (queue.isEmpty()) {
+            if (pendingLength > 0) {
+                long remaining = pendingSince + FLUSH_DELAY
+                        - System.currentTimeMillis();
+
+                if (remaining <= 0 || closed) {
+                    // queue is empty, so this does not block
+                    queue.add(ByteBuffer.wrap(pending, 0, pendingLength));
+                    pending = new byte[BATCH_SIZE];
+                    pendingLength = 0;
+                    break;
+                }
+
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            } else if (closed) {
+                return null;
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+        }
 
-        logger.debug("writing " + length + " bytes to file: " + virtualPath);
+        List<ByteBuffer> result = new ArrayList<ByteBuffer>(queue);
+        queue.clear();
+        notifyAll();
+        return result;
+    }
 
-        // stream data to other side
-        while (length > 0) {
-            int maxWrite = Math.min(length, BUFFER_SIZE);
+    // every call is compressed separately, using the data sent before as
+    // dictionary. A call (not a message) so the primary can tell us if it
+    // could not decompress the data
+    private void sendCompressed(List<ByteBuffer> batches) throws IOException {
+        Call call = endPoint.call(primary);
+        try {
+            call.writeInt(PrimaryOutputStream.WRITE_COMPRESSED);
+            call.writeObject(senderID);
+            writeCompressed(call, batches);
+            call.call();
+        } finally {
+            call.finish();
+        }
+    }
+
+    private void writeCompressed(ObjectOutput message,
+            List<ByteBuffer> batches) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        deflater.reset();
+        if (!window.isEmpty()) {
+            window.setDictionary(deflater);
+        }
+
+        for (ByteBuffer batch : batches) {
+            deflater.setInput(batch.array(), batch.position(), batch
+                    .remaining());
 
-            message.writeInt(maxWrite);
-            message.writeArray(data, offset, maxWrite);
-            offset += maxWrite;
-            length -= maxWrite;
+            while (!deflater.needsInput()) {
+                int length = deflater.deflate(buffer);
+                if (length > 0) {
+                    message.writeInt(length);
+                    message.writeArray(buffer, 0, length);
+                }
+            }
+
+            window.update(batch.array(), batch.position(), batch.remaining());
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            if (length > 0) {
+                message.writeInt(length);
+                message.writeArray(buffer, 0, length);
+            }
+        }
+
+        message.writeInt(-1);
+    }
+
+    private void send(List<ByteBuffer> batches) throws IOException {
+        if (compressed) {
+            sendCompressed(batches);
+            return;
+        }
+
+        WriteMessage message = endPoint.send(primary);
+
+        for (ByteBuffer batch : batches) {
+            message.writeInt(batch.remaining());
+            message.writeArray(batch.array(), batch.position(), batch
+                    .remaining());
         }
 
         message.writeInt(-1);
         message.finish();
-        logger.debug("writing done");
+    }
+
+    // sends batches to the primary until the stream is closed
+    private void flushBatches() {
+        while (true) {
+            List<ByteBuffer> batches = nextBatches();
+
+            if (batches == null) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                synchronized (this) {
+                    flusherDone = true;
+                    notifyAll();
+                }
+                return;
+            }
+
+            long length = 0;
+            for (ByteBuffer batch : batches) {
+                length += batch.remaining();
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("sending " + length + " bytes in "
+                        + batches.size() + " batches to " + primary);
+            }
+
+            try {
+                send(batches);
+            } catch (IOException e) {
+                logger.warn("could not send output to " + primary, e);
+                synchronized (this) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                sent += length;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized void write(byte[] data, int offset, int length)
+            throws IOException {
+        checkError();
+
+        written += length;
+
+        while (length > 0) {
+            if (pendingLength == 0) {
+                pendingSince = System.currentTimeMillis();
+                // wake up flusher to start the timer
+                notifyAll();
+            }
+
+            int copied = Math.min(length, BATCH_SIZE - pendingLength);
+            System.arraycopy(data, offset, pending, pendingLength, copied);
+            pendingLength += copied;
+            offset += copied;
+            length -= copied;
+
+            if (pendingLength == BATCH_SIZE) {
+                enqueuePending();
+            }
+        }
     }
 
     @Override
@@ -81,7 +319,7 @@ final class CopyOutputStream extends OutputStream implements Receiver {
     }
 
     @Override
-    public void write(int b) throws IOException {
+    public synchronized void write(int b) throws IOException {
         byte[] byteArray = new byte[1];
 
         byteArray[0] = (byte) b;
@@ -89,12 +327,45 @@ final class CopyOutputStream extends OutputStream implements Receiver {
         write(byteArray, 0, byteArray.length);
     }
 
+    /**
+     * Waits until all data written so far is sent to the primary.
+     */
     @Override
-    public void flush() throws IOException {
-        // NOTHING
+    public synchronized void flush() throws IOException {
+        checkError();
+
+        if (pendingLength > 0) {
+            enqueuePending();
+        }
+
+        long target = written;
+        while (sent < target && error == null && !flusherDone) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
     }
 
     public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+
+            // wait for the flusher to send the remaining data
+            while (!flusherDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+        }
         endPoint.close();
     }
 
@@ -110,25 +381,19 @@ final class CopyOutputStream extends OutputStream implements Receiver {
     public void readFrom(InputStream data) throws IOException {
         logger.debug("sending data to " + primary);
 
-        WriteMessage message = endPoint.send(primary);
-
-        // stream data to other side
+        // data goes through the batches, so it is compressed too
         byte[] buffer = new byte[BUFFER_SIZE];
         while (true) {
             int read = data.read(buffer);
 
             if (read == -1) {
                 data.close();
-                message.writeInt(-1);
-                message.finish();
+                flush();
                 logger.debug("writing done");
                 return;
             }
 
-            logger.debug("writing " + read + " bytes to primary");
-
-            message.writeInt(read);
-            message.writeArray(buffer, 0, read);
+            write(buffer, 0, read);
         }
 
     }
@@ -1,10 +1,13 @@
 package ibis.zorilla.job;
 
 import ibis.ipl.IbisIdentifier;
-import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePortIdentifier;
+import ibis.util.ThreadPool;
+import ibis.zorilla.Config;
 import ibis.zorilla.Node;
+import ibis.zorilla.dfs.FileCache;
 import ibis.zorilla.dfs.Hash;
+import ibis.zorilla.dfs.HashTree;
 import ibis.zorilla.io.ObjectInput;
 import ibis.zorilla.io.ObjectOutput;
 import ibis.zorilla.job.net.Call;
@@ -16,16 +19,45 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
 public class InputFile implements Receiver {
 
-    public static final int DOWNLOAD_ATTEMPTS = 1;
+    // attempts per chunk, last attempt(s) go to the primary
+    public static final int DOWNLOAD_ATTEMPTS = 3;
     public static final int PRIMARY_DOWNLOAD_TRESHOLD = 2;
 
-    private static final int BUFFER_SIZE = 31000;
+    // number of chunks downloaded at the same time
+    public static final int PARALLEL_DOWNLOADS = 4;
+
+    // maximum number of constituents asked which chunks they have
+    public static final int MAX_PEERS = 16;
+
+    // chunk maps of peers are asked again after this many chunks downloaded,
+    // as peers started at the same time as us will have chunks by then
+    public static final int PEER_REFRESH_CHUNKS = 16;
+
+    // ...or when we have to fall back to the primary, at most once per second
+    public static final long PEER_REFRESH_INTERVAL = 1000;
+
+    private static final int OPCODE_CHUNK_MAP = 0;
+
+    private static final int OPCODE_CHUNK = 1;
+
+    private static final int MIN_BLOCK_SIZE = 4 * 1024;
 
     private static final Logger logger = Logger.getLogger(InputFile.class);
 
@@ -41,12 +73,48 @@ public class InputFile implements Receiver {
 
     private final long size;
 
+    // root of the hash tree of this file
     private final Hash hash;
 
+    // hash tree of the original file (primary only)
+    private final HashTree tree;
+
     private final ReceivePortIdentifier primary;
 
+    // size of blocks used when transferring the file
+    private final int blockSize;
+
+    // file is split into chunks of this size, each with its own hash
+    private final int chunkSize;
+
+    private final Hash[] chunkHashes;
+
+    // chunks we have (and can give to others)
+    private final boolean[] available;
+
     private boolean downloaded;
 
+    // state of a download in progress (copy only)
+
+    // chunks still to be downloaded, rarest first
+    private LinkedList<Integer> todo;
+
+    // attempts left per chunk
+    private int[] attemptsLeft;
+
+    // chunks available at each peer
+    private Map<IbisIdentifier, boolean[]> peerChunks;
+
+    private int chunksSinceRefresh;
+
+    private long lastRefresh;
+
+    private boolean refreshing;
+
+    private FileChannel output;
+
+    private int activeDownloaders;
+
     // create a primary input file
     public InputFile(File file, String sandboxPath, Primary p)
             throws Exception, IOException {
@@ -54,6 +122,7 @@ public class InputFile implements Receiver {
         this.sandboxPath = sandboxPath;
         this.id = Node.generateUUID();
         this.job = p;
+        this.blockSize = blockSize(p.getNode());
 
         downloaded = true;
 
@@ -79,8 +148,19 @@ public class InputFile implements Receiver {
 
         size = file.length();
 
-        // calculate hash for this file
-        hash = new Hash(file);
+        chunkSize = p.getNode().config().getIntProperty(Config.FILE_CHUNK_SIZE);
+        if (chunkSize < blockSize) {
+            throw new Exception("chunk size (" + chunkSize
+                    + ") smaller than block size (" + blockSize + ")");
+        }
+
+        // calculate hash for each chunk, and the root hash for this file
+        tree = HashTree.of(file, chunkSize);
+        chunkHashes = tree.getChunkHashes();
+        hash = tree.getRoot();
+
+        available = new boolean[chunkHashes.length];
+        Arrays.fill(available, true);
 
         endPoint = job.newEndPoint(id.toString(), this);
 
@@ -92,6 +172,7 @@ public class InputFile implements Receiver {
             throws IOException, Exception {
 
         this.job = copy;
+        this.blockSize = blockSize(copy.getNode());
 
         downloaded = false;
 
@@ -101,11 +182,22 @@ public class InputFile implements Receiver {
             size = in.readLong();
             primary = (ReceivePortIdentifier) in.readObject();
             hash = (Hash) in.readObject();
+            chunkSize = in.readInt();
+            chunkHashes = (Hash[]) in.readObject();
 
         } catch (ClassNotFoundException e) {
             throw new Exception("could not read bootstrap", e);
         }
 
+        if (chunkHashes.length != nrOfChunks(size, chunkSize)
+                || !new Hash(chunkHashes).equals(hash)) {
+            throw new Exception("chunk hashes of " + sandboxPath
+                    + " do not match file hash");
+        }
+
+        tree = null;
+        available = new boolean[chunkHashes.length];
+
         file = new File(tmpDir, sandboxPath);
         file.getParentFile().mkdirs();
         file.deleteOnExit();
@@ -113,6 +205,27 @@ public class InputFile implements Receiver {
         endPoint = job.newEndPoint(id.toString(), this);
     }
 
+    private static int blockSize(Node node) {
+        int result = node.config().getIntProperty(Config.FILE_BLOCK_SIZE);
+
+        if (result < MIN_BLOCK_SIZE) {
+            return MIN_BLOCK_SIZE;
+        }
+        return result;
+    }
+
+    private static int nrOfChunks(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    private long chunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    private int chunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - chunkOffset(chunk));
+    }
+
     public long size() {
         return size;
     }
@@ -123,6 +236,8 @@ public class InputFile implements Receiver {
         output.writeLong(size);
         output.writeObject(primary);
         output.writeObject(hash);
+        output.writeInt(chunkSize);
+        output.writeObject(chunkHashes);
     }
 
     public String getSandboxPath() {
@@ -133,10 +248,8 @@ public class InputFile implements Receiver {
         return id;
     }
 
-    public File copyTo(File dir) throws Exception {
-
-        logger.debug("copying " + file + " to " + dir);
-
+    // location of this file in the given sandbox
+    private File destination(File dir) throws Exception {
         if (!isDownloaded()) {
             throw new Exception("file not downloaded");
         }
@@ -157,26 +270,67 @@ public class InputFile implements Receiver {
 
         logger.debug("destination file = " + destFile);
 
-        FileInputStream in = null;
-        FileOutputStream out = null;
+        return destFile;
+    }
+
+    /**
+     * Puts this file in the given sandbox as a (read only) hard link, so
+     * workers share a single copy of the data. Falls back to copying if
+     * linking is disabled, if the job wants writable input files, or if this
+     * is the original file of the primary (which we should not make read
+     * only).
+     */
+    public File linkTo(File dir) throws Exception {
+        if (tree != null
+                || !job.getNode().config().getBooleanProperty(Config.FILE_LINK)
+                || job.getAttributes().getBooleanProperty(
+                        JobAttributes.WRITABLE_INPUT, false)) {
+            return copyTo(dir);
+        }
+
+        logger.debug("linking " + file + " to " + dir);
+
+        File destFile = destination(dir);
+
+        synchronized (this) {
+            // all links share the data, so make sure no worker changes it
+            if (file.canWrite() && !file.setReadOnly()) {
+                logger.warn("could not make " + file + " read only");
+                return copyTo(dir);
+            }
+        }
+
         try {
+            FileCache.link(file, destFile);
+        } catch (IOException e) {
+            throw new Exception("could not link file", e);
+        }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
+        logger.debug("done linking file " + destFile);
+        return destFile;
+    }
 
-            in = new FileInputStream(file);
-            out = new FileOutputStream(destFile);
+    public File copyTo(File dir) throws Exception {
 
-            while (true) {
-                int read = in.read(buffer);
+        logger.debug("copying " + file + " to " + dir);
 
-                if (read == -1) {
-                    logger.debug("done copying file " + destFile);
-                    return destFile;
-                }
+        File destFile = destination(dir);
 
-                out.write(buffer, 0, read);
+        FileChannel in = null;
+        FileChannel out = null;
+        try {
+            in = new FileInputStream(file).getChannel();
+            out = new FileOutputStream(destFile).getChannel();
+
+            // let the OS copy the data, without passing it through java
+            long position = 0;
+            long length = in.size();
+            while (position < length) {
+                position += in.transferTo(position, length - position, out);
             }
 
+            logger.debug("done copying file " + destFile);
+            return destFile;
         } catch (IOException e) {
             throw new Exception("could not copy file", e);
         } finally {
@@ -198,65 +352,86 @@ public class InputFile implements Receiver {
         return file;
     }
 
-    private void readFrom(ObjectInput in) throws IOException {
-        logger.debug("reading " + sandboxPath);
+    private synchronized boolean hasChunk(int chunk) {
+        return chunk >= 0 && chunk < available.length && available[chunk];
+    }
 
-        byte[] buffer = new byte[BUFFER_SIZE];
+    private synchronized boolean[] getAvailableChunks() {
+        return available.clone();
+    }
 
-        FileOutputStream out = new FileOutputStream(file);
+    // reads a chunk (in blocks) from the given input, and stores it
+    private void readChunk(ObjectInput in, int chunk, byte[] buffer)
+            throws IOException {
+        int length = chunkLength(chunk);
+        int read = 0;
 
         while (true) {
-            int size = in.readInt();
+            int blockLength = in.readInt();
 
-            if (size == -1) {
+            if (blockLength == -1) {
                 // EOF
-                out.flush();
-                out.close();
-                return;
+                break;
             }
 
-            in.readArray(buffer, 0, size);
+            if (read + blockLength > length) {
+                throw new IOException("chunk " + chunk + " of " + sandboxPath
+                        + " too long");
+            }
 
-            out.write(buffer, 0, size);
+            in.readArray(buffer, read, blockLength);
+            read += blockLength;
         }
-    }
 
-    private void writeTo(Invocation invocation) throws IOException {
-        logger.debug("writing " + sandboxPath + " from " + file);
-
-        logger.debug("checking current value of hash of " + sandboxPath);
-        Hash hash = new Hash(file);
-
-        if (!hash.equals(this.hash)) {
-            throw new IOException(
-                    "current value of hash not equal to initial hash");
+        if (read != length) {
+            throw new IOException("chunk " + chunk + " of " + sandboxPath
+                    + " too short");
         }
 
-        logger.debug("done checking hash, writing file " + sandboxPath
-                + " with hash " + hash);
-
-        byte[] buffer = new byte[BUFFER_SIZE];
+        if (!new Hash(buffer, 0, length).equals(chunkHashes[chunk])) {
+            throw new IOException("hash of chunk " + chunk + " of "
+                    + sandboxPath + " does not match");
+        }
 
-        FileInputStream in = new FileInputStream(file);
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+        long position = chunkOffset(chunk);
+        while (data.hasRemaining()) {
+            position += output.write(data, position);
+        }
 
-        if (in.available() != size) {
-            logger.error("file size " + in.available() + " not equal to "
-                    + size);
+        synchronized (this) {
+            available[chunk] = true;
         }
+    }
 
-        while (true) {
-            int read = in.read(buffer);
+    // writes a chunk (in blocks), data is flushed when the invocation is
+    // finished
+    private void writeChunk(Invocation invocation, int chunk)
+            throws IOException {
+        byte[] buffer = new byte[blockSize];
 
-            if (read == -1) {
-                // EOF
-                invocation.writeInt(-1);
-                in.close();
-                return;
-            }
+        FileChannel in = new FileInputStream(file).getChannel();
+        try {
+            long position = chunkOffset(chunk);
+            long end = position + chunkLength(chunk);
+
+            while (position < end) {
+                ByteBuffer block = ByteBuffer.wrap(buffer, 0, (int) Math.min(
+                        blockSize, end - position));
+                while (block.hasRemaining()) {
+                    if (in.read(block, position + block.position()) == -1) {
+                        throw new IOException("file " + file
+                                + " shorter than expected");
+                    }
+                }
 
-            invocation.writeInt(read);
-            invocation.writeArray(buffer, 0, read);
-            invocation.flush();
+                invocation.writeInt(block.position());
+                invocation.writeArray(buffer, 0, block.position());
+                position += block.position();
+            }
+            invocation.writeInt(-1);
+        } finally {
+            in.close();
         }
     }
 
@@ -268,84 +443,327 @@ public class InputFile implements Receiver {
         downloaded = true;
     }
 
-    protected void download() throws Exception {
-        if (isDownloaded()) {
-            return;
-        }
+    // asks a number of constituents which chunks they have
+    private Map<IbisIdentifier, boolean[]> getPeerChunks() {
+        Map<IbisIdentifier, boolean[]> result = new HashMap<IbisIdentifier, boolean[]>();
 
-        logger.debug("dowloading " + sandboxPath);
+        List<Constituent> constituents = new ArrayList<Constituent>(Arrays
+                .asList(job.getConstituents()));
+        Collections.shuffle(constituents);
 
-        int triesLeft = DOWNLOAD_ATTEMPTS;
+        IbisIdentifier self = endPoint.getID().ibisIdentifier();
 
-        while (triesLeft > 0) {
-            Call call = null;
+        for (Constituent constituent : constituents) {
+            if (result.size() >= MAX_PEERS) {
+                break;
+            }
+
+            IbisIdentifier peer = constituent.getReceivePort().ibisIdentifier();
+            if (peer.equals(self)) {
+                continue;
+            }
 
+            Call call = null;
             try {
-                if (triesLeft < PRIMARY_DOWNLOAD_TRESHOLD) {
-                    call = endPoint.call(primary);
-                } else {
-                    IbisIdentifier victim = job.getRandomConstituent();
-                    call = endPoint.call(victim, id().toString());
+                call = endPoint.call(peer, id().toString());
+                call.writeInt(OPCODE_CHUNK_MAP);
+                call.call();
+
+                boolean[] chunks = (boolean[]) call.readObject();
+                if (chunks.length == chunkHashes.length) {
+                    result.put(peer, chunks);
+                }
+            } catch (Exception e) {
+                logger.debug("could not get chunk map from " + peer, e);
+            } finally {
+                if (call != null) {
+                    call.finish();
                 }
+            }
+        }
+        return result;
+    }
 
-                logger.debug("written request, waiting for reply");
+    // order missing chunks rarest first, randomly among equally rare chunks
+    private LinkedList<Integer> rarestFirst(
+            Map<IbisIdentifier, boolean[]> peerChunks) {
+        final int[] count = new int[chunkHashes.length];
+        for (boolean[] chunks : peerChunks.values()) {
+            for (int i = 0; i < chunks.length; i++) {
+                if (chunks[i]) {
+                    count[i]++;
+                }
+            }
+        }
 
-                call.call();
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < chunkHashes.length; i++) {
+            if (!hasChunk(i)) {
+                result.add(i);
+            }
+        }
+        Collections.shuffle(result);
+        // stable sort, keeps random order among equally rare chunks
+        Collections.sort(result, new Comparator<Integer>() {
+            public int compare(Integer one, Integer other) {
+                return count[one] - count[other];
+            }
+        });
 
-                boolean ok = call.readBoolean();
+        return new LinkedList<Integer>(result);
+    }
 
-                if (!ok) {
-                    logger.debug("file not available at peer, trying another");
-                    call.finish();
-                    triesLeft--;
-                    continue;
-                }
+    // returns the next chunk to download, or -1 if there is none
+    private synchronized int nextChunk() {
+        if (todo.isEmpty()) {
+            return -1;
+        }
+        return todo.removeFirst();
+    }
+
+    // picks a random peer which has the given chunk, or null for the primary
+    private synchronized IbisIdentifier selectPeer(int chunk) {
+        if (attemptsLeft[chunk] < PRIMARY_DOWNLOAD_TRESHOLD) {
+            return null;
+        }
+
+        List<IbisIdentifier> holders = new ArrayList<IbisIdentifier>();
+        for (Map.Entry<IbisIdentifier, boolean[]> entry : peerChunks
+                .entrySet()) {
+            if (entry.getValue()[chunk]) {
+                holders.add(entry.getKey());
+            }
+        }
 
-                // delete existing file (if any)
-                file.delete();
+        if (holders.isEmpty()) {
+            return null;
+        }
+        return holders.get(Node.randomInt(holders.size()));
+    }
 
-                readFrom(call);
+    private synchronized void chunkDownloaded() {
+        chunksSinceRefresh++;
+    }
 
-                Hash hash = new Hash(file);
+    // returns true if the calling thread should refresh the chunk maps of
+    // peers now
+    private synchronized boolean startRefresh(boolean fallback) {
+        if (refreshing || peerChunks == null) {
+            return false;
+        }
 
-                if (hash.equals(this.hash)) {
-                    logger.debug("done downloading " + sandboxPath);
-                    setDownloaded();
+        boolean due = chunksSinceRefresh >= PEER_REFRESH_CHUNKS
+                || (fallback && System.currentTimeMillis() - lastRefresh
+                        >= PEER_REFRESH_INTERVAL);
+
+        if (!due) {
+            return false;
+        }
+
+        refreshing = true;
+        chunksSinceRefresh = 0;
+        return true;
+    }
+
+    private void refreshPeerChunks() {
+        Map<IbisIdentifier, boolean[]> peerChunks = getPeerChunks();
+
+        synchronized (this) {
+            if (this.peerChunks != null) {
+                this.peerChunks = peerChunks;
+            }
+            lastRefresh = System.currentTimeMillis();
+            refreshing = false;
+        }
+    }
+
+    private synchronized void chunkFailed(int chunk, IbisIdentifier peer) {
+        if (peer != null) {
+            // do not ask this peer again
+            boolean[] chunks = peerChunks.get(peer);
+            if (chunks != null) {
+                chunks[chunk] = false;
+            }
+        }
+        attemptsLeft[chunk]--;
+        if (attemptsLeft[chunk] > 0) {
+            todo.addLast(chunk);
+        }
+    }
+
+    private void downloadChunk(int chunk, byte[] buffer) {
+        IbisIdentifier peer = selectPeer(chunk);
+
+        if (peer == null && startRefresh(true)) {
+            // perhaps some peer has this chunk by now
+            refreshPeerChunks();
+            peer = selectPeer(chunk);
+        }
+
+        Call call = null;
+        try {
+            if (peer == null) {
+                call = endPoint.call(primary);
+            } else {
+                call = endPoint.call(peer, id().toString());
+            }
+
+            call.writeInt(OPCODE_CHUNK);
+            call.writeInt(chunk);
+            call.call();
+
+            if (!call.readBoolean()) {
+                throw new IOException("chunk not available at peer");
+            }
+
+            readChunk(call, chunk, buffer);
+            chunkDownloaded();
+        } catch (Exception e) {
+            logger.debug("could not download chunk " + chunk + " of "
+                    + sandboxPath + " from "
+                    + (peer == null ? "primary" : peer.toString()), e);
+            chunkFailed(chunk, peer);
+        } finally {
+            if (call != null) {
+                call.finish();
+            }
+        }
+    }
+
+    // downloads chunks until there are no more
+    private void downloadChunks() {
+        byte[] buffer = new byte[chunkSize];
+
+        try {
+            while (true) {
+                int chunk = nextChunk();
+                if (chunk == -1) {
                     return;
-                } else {
-                    logger.warn("hash does not match, trying again");
-                    triesLeft--;
                 }
-            } catch (Exception e) {
-                job.log("exeption on downloading file", e);
-                triesLeft--;
-            } finally {
-                if (call != null) {
-                    call.finish();
+                downloadChunk(chunk, buffer);
+
+                if (startRefresh(false)) {
+                    refreshPeerChunks();
                 }
             }
+        } finally {
+            synchronized (this) {
+                activeDownloaders--;
+                notifyAll();
+            }
         }
-        throw new Exception("could not download file " + sandboxPath + " to "
-                + file);
     }
 
-    public void invoke(Invocation invocation) throws Exception, IOException {
+    /**
+     * Downloads the file in chunks, from the primary and from other
+     * constituents, several chunks at a time, rarest chunks first.
+     */
+    protected void download() throws Exception {
+        if (isDownloaded()) {
+            return;
+        }
 
-        // nothing to read
-        invocation.finishRead();
+        FileCache cache = job.getNode().fileCache();
 
-        if (!isDownloaded()) {
-            // we don't have the file ourselves
-            invocation.writeBoolean(false);
-            invocation.finish();
+        if (cache.get(hash, file)) {
+            logger.debug("found " + sandboxPath + " in cache");
+            synchronized (this) {
+                Arrays.fill(available, true);
+            }
+            setDownloaded();
             return;
         }
 
-        invocation.writeBoolean(true);
+        logger.debug("dowloading " + sandboxPath);
+
+        Map<IbisIdentifier, boolean[]> peerChunks = getPeerChunks();
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            // allocate the whole file at once
+            out.setLength(size);
+
+            synchronized (this) {
+                this.peerChunks = peerChunks;
+                chunksSinceRefresh = 0;
+                lastRefresh = System.currentTimeMillis();
+                this.output = out.getChannel();
+                todo = rarestFirst(peerChunks);
+                attemptsLeft = new int[chunkHashes.length];
+                Arrays.fill(attemptsLeft, DOWNLOAD_ATTEMPTS);
+                activeDownloaders = PARALLEL_DOWNLOADS;
+            }
+
+            for (int i = 1; i < PARALLEL_DOWNLOADS; i++) {
+                ThreadPool.createNew(new Runnable() {
+                    public void run() {
+                        downloadChunks();
+                    }
+                }, "chunk downloader");
+            }
+            downloadChunks();
+
+            synchronized (this) {
+                while (activeDownloaders > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // IGNORE
+                    }
+                }
+                output = null;
+                todo = null;
+                this.peerChunks = null;
+            }
+        } finally {
+            out.close();
+        }
 
-        writeTo(invocation);
+        for (int i = 0; i < chunkHashes.length; i++) {
+            if (!hasChunk(i)) {
+                throw new Exception("could not download file " + sandboxPath
+                        + " to " + file + ": chunk " + i + " missing");
+            }
+        }
+
+        logger.debug("done downloading " + sandboxPath);
+        setDownloaded();
+
+        cache.add(hash, file);
+    }
+
+    public void invoke(Invocation invocation) throws Exception, IOException {
+        int opcode = invocation.readInt();
+
+        switch (opcode) {
+        case OPCODE_CHUNK_MAP:
+            invocation.finishRead();
+            invocation.writeObject(getAvailableChunks());
+            break;
+        case OPCODE_CHUNK:
+            int chunk = invocation.readInt();
+            invocation.finishRead();
+
+            if (!hasChunk(chunk)) {
+                // we don't have this chunk ourselves (yet)
+                invocation.writeBoolean(false);
+                break;
+            }
+
+            // make sure the original file was not changed since submission
+            if (tree != null && !tree.verifyChunk(chunk)) {
+                throw new IOException("current value of hash of chunk "
+                        + chunk + " of " + file + " not equal to initial hash");
+            }
+
+            invocation.writeBoolean(true);
+            writeChunk(invocation, chunk);
+            logger.debug("done writing chunk " + chunk + " of " + sandboxPath);
+            break;
+        default:
+            throw new Exception("unknown opcode in request: " + opcode);
+        }
 
-        logger.debug("done writing input");
         invocation.finish();
     }
 
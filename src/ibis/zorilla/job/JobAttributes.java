@@ -64,6 +64,16 @@ public class JobAttributes extends TypedProperties {
 
 	public static final String VIRTUAL = "virtual";
 
+	public static final String PRIORITY = "priority";
+
+	public static final String USER = "user";
+
+	public static final String CORES = "cores";
+
+	public static final String CUSTOM_RESOURCES = "custom.resources";
+
+	public static final String WRITABLE_INPUT = "writable.input";
+
 	// constants
 
 	public static final long MAX_JOB_LIFETIME = 8 * 60; // 8 hours
@@ -99,13 +109,22 @@ public class JobAttributes extends TypedProperties {
 			{ SPLIT_STDOUT, "false",
 					"if true, stdout is a directory with a file for each worker" },
 			{ SPLIT_STDERR, "false",
-					"if true, stdout is a directory with a file for each worker" },
+					"if true, stderr is a directory with a file for each worker" },
 			{ MTBF, "0",
 					"Integer: mean time between failure in seconds for the workers" },
 			{
 					VIRTUAL,
 					"false",
 					"Boolean: if true, a virtual machine is used when starting this job. It should be present in the vm dir of the prestage files" },
+			{ PRIORITY, "0",
+					"Integer: scheduling priority, jobs with a higher priority get free nodes first" },
+			{ USER, null,
+					"Name of the user submitting this job, nodes are shared fairly between users" },
+			{ CORES, "1", "Integer: number of cores needed per executable" },
+			{ CUSTOM_RESOURCES, null,
+					"Comma separated list of name=amount of custom resources (for instance accelerators) needed per executable" },
+			{ WRITABLE_INPUT, "false",
+					"if true, every executable gets its own writable copy of the input files, instead of a shared read only link" },
 
 	};
 
@@ -180,6 +199,16 @@ public class JobAttributes extends TypedProperties {
 					+ onUserError);
 		}
 
+		if (getIntProperty(DISK_SPACE, 0) < 0) {
+			throw new Exception(DISK_SPACE + " must not be negative");
+		}
+
+		if (getIntProperty(CORES, 1) < 0) {
+			throw new Exception(CORES + " must not be negative");
+		}
+
+		Resources.parseCounters(getProperty(CUSTOM_RESOURCES));
+
 		long lifetime = getLongProperty(WALLTIME_MAX);
 		if (lifetime == 0) {
 			// FIXME: fix! :)
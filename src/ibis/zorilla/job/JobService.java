@@ -10,6 +10,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -39,9 +41,46 @@ public final class JobService implements Service, Runnable {
 
     private final String[] hostnames;
 
+    // resources of each node
     private final Resources nodeResources;
 
-    private final Worker[] workers;
+    /**
+     * Resources held by a worker on one of the nodes.
+     */
+    private static final class Allocation {
+        private final Worker worker;
+
+        private final int node;
+
+        private final Resources resources;
+
+        // user of the job of the worker, for fair share scheduling
+        private final String user;
+
+        // time at which this reservation expires, unless the worker is
+        // started before that. 0 once started
+        private long lease;
+
+        // time at which the worker is expected to be done
+        private long end;
+
+        Allocation(Worker worker, int node, Resources resources, String user) {
+            this.worker = worker;
+            this.node = node;
+            this.resources = resources;
+            this.user = user;
+        }
+    }
+
+    // ledger of resources held by workers
+    private final ArrayList<Allocation> allocations;
+
+    // resources of each node not held by any worker
+    private final Resources[] free;
+
+    private final long leaseTimeout;
+
+    private final Scheduler scheduler;
 
     // return 90% of physical memory size as max memory available
     private static int freeMemory() {
@@ -79,7 +118,9 @@ public final class JobService implements Service, Runnable {
         logger.info("Total diskspace available: " + usableDiskSpace + " Mb");
 
         nodeResources = new Resources(availableCores, freeMemory,
-                usableDiskSpace);
+                usableDiskSpace, Resources.parseCounters(node.config()
+                        .getProperty(Config.RESOURCE_CUSTOM)));
+        logger.info("Resources of each node: " + nodeResources);
 
         nodes = node.config().getIntProperty(Config.RESOURCE_NODES, 1);
         String[] hostnames = node.config().getHosts();
@@ -98,7 +139,15 @@ public final class JobService implements Service, Runnable {
 
         this.hostnames = hostnames;
 
-        workers = new Worker[nodes];
+        allocations = new ArrayList<Allocation>();
+        free = new Resources[nodes];
+        for (int i = 0; i < nodes; i++) {
+            free[i] = nodeResources;
+        }
+        scheduler = new Scheduler();
+
+        leaseTimeout = node.config().getIntProperty(
+                Config.WORKER_LEASE_TIMEOUT) * 1000L;
 
         logger.info("Available nodes: " + nodes);
     }
@@ -216,22 +265,192 @@ public final class JobService implements Service, Runnable {
         }
     }
 
-    public boolean resourcesAvailable(Resources workerResources) {
-        return nodeResources.subtract(workerResources).greaterOrEqualZero();
+    // every worker is a process, and needs at least a single core
+    private static Resources perWorker(Resources workerResources) {
+        if (workerResources.getCores() >= 1) {
+            return workerResources;
+        }
+        return workerResources.add(new Resources(1 - workerResources
+                .getCores(), 0, 0));
     }
 
-    public synchronized String addWorker(Worker worker) {
-        for (int i = 0; i < workers.length; i++) {
-            if (workers[i] == null || workers[i].finished()) {
-                workers[i] = worker;
-                return hostnames[i];
+    // returns the resources of finished workers to the nodes
+    private synchronized void releaseFinished() {
+        Iterator<Allocation> iterator = allocations.iterator();
+
+        while (iterator.hasNext()) {
+            Allocation allocation = iterator.next();
+
+            if (allocation.worker.finished()) {
+                iterator.remove();
+                free[allocation.node] = free[allocation.node]
+                        .add(allocation.resources);
             }
         }
+    }
+
+    /**
+     * Returns true if a worker with the given resources fits on at least one
+     * of the nodes.
+     */
+    public synchronized boolean resourcesAvailable(Resources workerResources) {
+        releaseFinished();
+
+        Resources needed = perWorker(workerResources);
+        for (Resources resources : free) {
+            if (resources.subtract(needed).greaterOrEqualZero()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // resources held by workers, sorted by the time they expect to be done
+    private Scheduler.Release[] releases() {
+        Scheduler.Release[] result = new Scheduler.Release[allocations.size()];
+
+        for (int i = 0; i < result.length; i++) {
+            Allocation allocation = allocations.get(i);
+            result[i] = new Scheduler.Release(allocation.end, allocation.node,
+                    allocation.resources);
+        }
+        Arrays.sort(result);
+
+        return result;
+    }
+
+    // number of workers of each user
+    private Map<String, Integer> usage() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+
+        for (Allocation allocation : allocations) {
+            Integer count = result.get(allocation.user);
+            result.put(allocation.user, count == null ? 1 : count + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of workers of the given job which could be added now,
+     * taking into account the workers wanted by jobs before it in the queue.
+     */
+    public int nrOfWorkersAvailable(ZorillaJob job, Resources workerResources) {
+        // read attributes of the job before taking our lock
+        Scheduler.Request request = new Scheduler.Request(job,
+                perWorker(workerResources), 1);
 
-        // no node available
+        synchronized (this) {
+            releaseFinished();
+
+            return scheduler.available(request, free, releases(), usage());
+        }
+    }
+
+    /**
+     * Reserves resources for the given worker, if the scheduler decides its
+     * job is next in line. The worker is placed on the node where it fits
+     * best (leaving the least cores and memory), so workers of several jobs
+     * share a node as long as it has resources left. The reservation is a
+     * lease: if the worker is not started within the lease timeout, the
+     * worker is aborted and its resources released.
+     * 
+     * @param wanted
+     *            number of workers the job wants in total (including this
+     *            one)
+     * @return the hostname of the node reserved, or null if none is available
+     */
+    public String addWorker(Worker worker, Resources workerResources,
+            int wanted) {
+        expireLeases();
+
+        // read attributes of the job before taking our lock
+        Scheduler.Request request = new Scheduler.Request(worker.getJob(),
+                perWorker(workerResources), wanted);
+
+        synchronized (this) {
+            releaseFinished();
+
+            if (!scheduler.admit(request, free, releases(), usage())) {
+                logger.debug("no resources for " + request);
+                return null;
+            }
+
+            Resources needed = request.getResources();
+            int node = Scheduler.bestFit(free, needed);
+
+            long now = System.currentTimeMillis();
+
+            Allocation allocation = new Allocation(worker, node, needed,
+                    request.getUser());
+            allocation.lease = now + leaseTimeout;
+            allocation.end = now + leaseTimeout + request.getWalltime();
+            allocations.add(allocation);
+            free[node] = free[node].subtract(needed);
+
+            return hostnames[node];
+        }
+    }
+
+    public String addWorker(Worker worker, Resources workerResources) {
+        return addWorker(worker, workerResources, 1);
+    }
+
+    private Allocation getAllocation(Worker worker) {
+        for (Allocation allocation : allocations) {
+            if (allocation.worker == worker) {
+                return allocation;
+            }
+        }
         return null;
     }
 
+    /**
+     * Turns the reservation of the given worker into a permanent claim, called
+     * when the worker is started.
+     * 
+     * @return false if the reservation expired already
+     */
+    public synchronized boolean commitWorker(Worker worker) {
+        Allocation allocation = getAllocation(worker);
+
+        if (allocation == null) {
+            return false;
+        }
+
+        // expected end now counts from the actual start
+        allocation.end = System.currentTimeMillis() + allocation.end
+                - allocation.lease;
+        allocation.lease = 0;
+        return true;
+    }
+
+    // releases resources reserved for workers which were not started in time
+    private void expireLeases() {
+        ArrayList<Worker> expired = new ArrayList<Worker>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            Iterator<Allocation> iterator = allocations.iterator();
+            while (iterator.hasNext()) {
+                Allocation allocation = iterator.next();
+
+                if (allocation.lease != 0 && now > allocation.lease) {
+                    iterator.remove();
+                    free[allocation.node] = free[allocation.node]
+                            .add(allocation.resources);
+                    expired.add(allocation.worker);
+                }
+            }
+        }
+
+        // abort outside our lock, aborting notifies the job
+        for (Worker worker : expired) {
+            logger.info("reservation for worker " + worker + " expired");
+            worker.abort();
+        }
+    }
+
     public void start() {
         ThreadPool.createNew(this, "job service");
         logger.info("Started Job service");
@@ -243,29 +462,54 @@ public final class JobService implements Service, Runnable {
 
     public synchronized Map<String, String> getStats() {
         Map<String, String> result = new HashMap<String, String>();
+
+        releaseFinished();
+
+        int reserved = 0;
+        Resources available = new Resources();
+        for (Allocation allocation : allocations) {
+            if (allocation.lease != 0) {
+                reserved++;
+            }
+        }
+        for (Resources resources : free) {
+            available = available.add(resources);
+        }
+        result.put("workers", Integer.toString(allocations.size()));
+        result.put("reserved.workers", Integer.toString(reserved));
+        for (Map.Entry<String, String> entry : available.asStringMap()
+                .entrySet()) {
+            result.put("free." + entry.getKey(), entry.getValue());
+        }
+        result.put("queued.jobs", Integer.toString(scheduler.nrOfRequests()));
+
         return result;
     }
 
     /**
      * cleanup and maintenance thread
      */
-    public synchronized void run() {
+    public void run() {
         while (true) {
-            try {
-                wait(JOB_MAINTENANCE_INTERVAL);
-            } catch (InterruptedException e) {
-                // IGNORE
-            }
+            synchronized (this) {
+                try {
+                    wait(JOB_MAINTENANCE_INTERVAL);
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
 
-            // purge dead jobs
-            Iterator<ZorillaJob> iterator = jobs.values().iterator();
-            while (iterator.hasNext()) {
-                ZorillaJob job = iterator.next();
+                // purge dead jobs
+                Iterator<ZorillaJob> iterator = jobs.values().iterator();
+                while (iterator.hasNext()) {
+                    ZorillaJob job = iterator.next();
 
-                if (job.zombie()) {
-                    iterator.remove();
+                    if (job.zombie()) {
+                        iterator.remove();
+                    }
                 }
             }
+
+            expireLeases();
         }
     }
 
@@ -288,18 +532,6 @@ public final class JobService implements Service, Runnable {
         return nodeResources;
     }
 
-    public synchronized int freeNodes() {
-        int result = 0;
-
-        for (Worker worker : workers) {
-            if (worker == null || worker.finished()) {
-                result++;
-            }
-
-        }
-        return result;
-    }
-
     public synchronized UUID[] getJobIDs() {
         return jobs.keySet().toArray(new UUID[0]);
     }
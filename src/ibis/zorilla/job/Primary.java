@@ -13,6 +13,7 @@ import ibis.zorilla.api.JavaJobDescription;
 import ibis.zorilla.api.JobInterface;
 import ibis.zorilla.api.NativeJobDescription;
 import ibis.zorilla.api.VirtualJobDescription;
+import ibis.zorilla.cluster.Coordinates;
 import ibis.zorilla.io.ObjectOutput;
 import ibis.zorilla.io.ZorillaPrintStream;
 import ibis.zorilla.job.Worker.Status;
@@ -31,13 +32,21 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
@@ -49,8 +58,21 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     public static final int MAX_ADVERT_RADIUS = 15;
 
+    // interval at which we retry things we do not get an event for (such as
+    // resources becoming available)
     public static final long WAIT_TIMEOUT = 1000;
 
+    // maximum time claiming workers on all constituents may take
+    public static final long CLAIM_TIMEOUT = 60 * 1000;
+
+    // maximum time between attempts to claim nodes, if attempts fail (for
+    // instance because a job with a higher priority is waiting for the same
+    // nodes)
+    public static final long MAX_CLAIM_BACKOFF = 30 * 1000;
+
+    // number of removed constituents remembered for state deltas
+    public static final int MAX_REMOVED_CONSTITUENTS = 1000;
+
     static final int REGISTER = 0;
 
     static final int UPDATE_MAX_NR_OF_WORKERS = 1;
@@ -67,6 +89,8 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     static final int UNREGISTER = 7;
 
+    static final int GET_WORKER_OUTPUT = 8;
+
     private static final Logger logger = Logger.getLogger(Primary.class);
 
     // *** STATIC INFO ON JOB *** \\
@@ -87,19 +111,29 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     private final PrimaryOutputStream stderr;
 
+    // standard out/err with a file per worker, if split (stdout/stderr null)
+    private final SplitOutputStream splitStdout;
+
+    private final SplitOutputStream splitStderr;
+
     private final InputFile stdin;
 
     // *** DISTRIBUTED STATE *** \\
 
     private JobAttributes attributes;
 
-    private JobPhase phase;
+    // only moves forward, changed using compare-and-set
+    private final AtomicReference<JobPhase> phase = new AtomicReference<JobPhase>(
+            JobPhase.UNKNOWN);
 
     private int exitStatus;
 
     private final Map<UUID, Constituent> constituents;
 
-    private long deadline;
+    // total number of workers of all constituents
+    private final AtomicInteger nrOfWorkers = new AtomicInteger(0);
+
+    private volatile long deadline;
 
     // *** CENTRAL STATE ***\\
 
@@ -113,9 +147,9 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     private long submissiontime;
 
-    private long starttime = 0;
+    private volatile long starttime = 0;
 
-    private long stoptime = 0;
+    private volatile long stoptime = 0;
 
     // *** LOCAL DATA ***\\
 
@@ -140,6 +174,47 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
      */
     private boolean dirty = false;
 
+    // if true, something happened the job thread should react to
+    private boolean events = true;
+
+    // time at which the job thread should retry something, 0 if none
+    private long retryTime = 0;
+
+    // job thread only: earliest time to claim nodes again, and the time to
+    // wait after the next failed attempt
+    private long nextClaim = 0;
+
+    private long claimBackoff = WAIT_TIMEOUT;
+
+    // guards the version bookkeeping below. Never held while calling out,
+    // so state updates can be created without the lock of this job
+    private final Object stateLock = new Object();
+
+    // version of the distributed state, increased on every change
+    private long stateVersion = 1;
+
+    // version in which the attributes last changed
+    private long attributesVersion = 1;
+
+    // recently removed constituents, and the version they were removed in
+    private final LinkedHashMap<UUID, Long> removedConstituents = new LinkedHashMap<UUID, Long>();
+
+    // changes before this version are no longer known, older copies need a
+    // snapshot of the state
+    private long oldestDeltaBase = 1;
+
+    // version of the state each constituent reported to have. Updates pushed
+    // along the dissemination tree may get lost, so only versions reported
+    // by the constituents themselves are used as base of a delta
+    private final ConcurrentHashMap<UUID, Long> ackedVersions = new ConcurrentHashMap<UUID, Long>();
+
+    // number of constituents every node sends a state update to
+    private final int stateFanout;
+
+    // order in which state updates are disseminated, null if it needs to be
+    // recomputed
+    private Constituent[] disseminationOrder = null;
+
     // the ibis used to communicate with all the copies.
     private final Ibis ibis;
 
@@ -153,6 +228,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         this.node = node;
 
         cluster = node.config().getProperty(Config.CLUSTER_NAME);
+        stateFanout = node.config().getIntProperty(Config.STATE_FANOUT);
 
         id = Node.generateUUID();
         this.jobDescription = description;
@@ -195,14 +271,35 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
             ArrayList<PrimaryOutputStream> postStageFiles = new ArrayList<PrimaryOutputStream>();
 
+            boolean splitOut = attributes
+                    .getBooleanProperty(JobAttributes.SPLIT_STDOUT);
+            boolean splitErr = attributes
+                    .getBooleanProperty(JobAttributes.SPLIT_STDERR);
+
             if (description.isInteractive()) {
-                stdout = new PrimaryOutputStream("##stdout##",
-                        File.createTempFile(id.toString(), ".stdout", node
-                                .config().getTmpDir()), this);
+                File tmpDir = node.config().getTmpDir();
 
-                stderr = new PrimaryOutputStream("##stderr##",
-                        File.createTempFile(id.toString(), ".stderr", node
-                                .config().getTmpDir()), this);
+                if (splitOut) {
+                    stdout = null;
+                    splitStdout = new SplitOutputStream("##stdout##",
+                            new File(tmpDir, id.toString() + ".stdout"), this);
+                } else {
+                    stdout = new PrimaryOutputStream("##stdout##", File
+                            .createTempFile(id.toString(), ".stdout", tmpDir),
+                            this);
+                    splitStdout = null;
+                }
+
+                if (splitErr) {
+                    stderr = null;
+                    splitStderr = new SplitOutputStream("##stderr##",
+                            new File(tmpDir, id.toString() + ".stderr"), this);
+                } else {
+                    stderr = new PrimaryOutputStream("##stderr##", File
+                            .createTempFile(id.toString(), ".stderr", tmpDir),
+                            this);
+                    splitStderr = null;
+                }
 
                 // TODO: support standard in too :)
                 stdin = null;
@@ -214,11 +311,26 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                                     .config().getTmpDir()), this));
                 }
             } else {
-                stdout = new PrimaryOutputStream("##stdout##",
-                        description.getStdoutFile(), this);
+                if (splitOut) {
+                    // stdout file is a directory with a file per worker
+                    stdout = null;
+                    splitStdout = new SplitOutputStream("##stdout##",
+                            description.getStdoutFile(), this);
+                } else {
+                    stdout = new PrimaryOutputStream("##stdout##",
+                            description.getStdoutFile(), this);
+                    splitStdout = null;
+                }
 
-                stderr = new PrimaryOutputStream("##stderr##",
-                        description.getStderrFile(), this);
+                if (splitErr) {
+                    stderr = null;
+                    splitStderr = new SplitOutputStream("##stderr##",
+                            description.getStderrFile(), this);
+                } else {
+                    stderr = new PrimaryOutputStream("##stderr##",
+                            description.getStderrFile(), this);
+                    splitStderr = null;
+                }
 
                 if (description.getStdinFile() == null) {
                     stdin = null;
@@ -247,11 +359,11 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             }
 
             // LOCAL workers
-            localWorkers = new HashMap<UUID, Worker>();
+            localWorkers = new ConcurrentHashMap<UUID, Worker>();
 
             workerResources = new Resources(attributes);
 
-            constituents = new HashMap<UUID, Constituent>();
+            constituents = new ConcurrentHashMap<UUID, Constituent>();
             // register self
             constituents.put(id,
                     new Constituent(id, endPoint.getID(), node.getInfo()));
@@ -360,6 +472,11 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         return new EndPoint(name, receiver, ibis);
     }
 
+    @Override
+    Node getNode() {
+        return node;
+    }
+
     @Override
     public synchronized void updateAttributes(Map<String, String> attributes)
             throws Exception {
@@ -373,14 +490,17 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         JobAttributes jobAttributes = new JobAttributes(attributes);
         jobAttributes.checkAttributes();
 
-        this.attributes.putAll(attributes);
+        synchronized (stateLock) {
+            this.attributes.putAll(attributes);
+            attributesVersion = ++stateVersion;
+        }
         dirty = true;
-        notifyAll();
+        signal();
     }
 
     @Override
     public synchronized void cancel() {
-        if (phase.isBefore(JobPhase.COMPLETED)) {
+        if (phase.get().isBefore(JobPhase.COMPLETED)) {
             setPhase(JobPhase.CANCELLED);
         }
     }
@@ -393,20 +513,21 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                 worker.signal(deadline);
             }
 
+            nextVersion();
             dirty = true;
-            notifyAll();
+            signal();
         }
     }
 
     @Override
-    public synchronized Map<String, String> getStats() {
+    public Map<String, String> getStats() {
         Map<String, String> result = new HashMap<String, String>();
 
         result.put("ID", getID().toString());
         result.put("primary", "yes");
         result.put("total.workers", String.valueOf(getNrOfWorkers()));
         result.put("local.workers", String.valueOf(localWorkers.size()));
-        result.put("phase", phase.toString());
+        result.put("phase", phase.get().toString());
         result.put("deadline", new Date(deadline).toString());
         result.put("submission.time", new Date(submissiontime).toString());
         result.put("start.time", new Date(starttime).toString());
@@ -461,7 +582,10 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         return result;
     }
 
-    protected OutputStream getStdout() {
+    protected OutputStream getStdout(UUID worker) throws Exception {
+        if (splitStdout != null) {
+            return splitStdout.getStream(worker);
+        }
         return stdout;
     }
 
@@ -469,7 +593,10 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         return stdin;
     }
 
-    protected OutputStream getStderr() {
+    protected OutputStream getStderr(UUID worker) throws Exception {
+        if (splitStderr != null) {
+            return splitStderr.getStream(worker);
+        }
         return stderr;
     }
 
@@ -500,32 +627,32 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
     }
 
     @Override
-    public synchronized JobAttributes getAttributes() {
+    public JobAttributes getAttributes() {
         return attributes;
     }
 
     @Override
-    public synchronized JobPhase getPhase() {
-        return phase;
+    public JobPhase getPhase() {
+        return phase.get();
     }
 
     @Override
-    protected synchronized boolean getBooleanAttribute(String name) {
+    protected boolean getBooleanAttribute(String name) {
         return attributes.getBooleanProperty(name);
     }
 
     @Override
-    protected synchronized String getStringAttribute(String name) {
+    protected String getStringAttribute(String name) {
         return attributes.getProperty(name);
     }
 
     @Override
-    protected synchronized int getIntegerAttribute(String name) {
+    protected int getIntegerAttribute(String name) {
         return attributes.getIntProperty(name);
     }
 
     @Override
-    protected synchronized long getSizeAttribute(String name) {
+    protected long getSizeAttribute(String name) {
         return attributes.getSizeProperty(name);
     }
 
@@ -535,17 +662,11 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         return false;
     }
 
-    public synchronized int getNrOfWorkers() {
-        int result = 0;
-
-        for (Constituent constituent : constituents.values()) {
-            result += constituent.nrOfWorkers();
-        }
-
-        return result;
+    public int getNrOfWorkers() {
+        return nrOfWorkers.get();
     }
 
-    private synchronized boolean moreWorkersNeeded() {
+    private boolean moreWorkersNeeded() {
         if (!getBooleanAttribute(JobAttributes.MALLEABLE)) {
             // workers started by scheduler
             return false;
@@ -557,6 +678,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             return false;
         }
 
+        JobPhase phase = this.phase.get();
         if (!(phase == JobPhase.SCHEDULING || phase == JobPhase.RUNNING)) {
             return false;
         }
@@ -564,29 +686,44 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         return true;
     }
 
-    private synchronized boolean newWorker(Constituent constituent,
-            UUID workerID) {
+    private boolean newWorker(Constituent constituent, UUID workerID) {
         if (!getBooleanAttribute(JobAttributes.MALLEABLE)) {
             // workers started by scheduler
             return false;
         }
 
-        if (getNrOfWorkers() >= maxNrOfWorkers()) {
-            log("creation of a new worker denied, we already "
-                    + "have at least " + maxNrOfWorkers() + " workers");
-            return false;
-        }
+        // claim a slot for this worker
+        int maxNrOfWorkers = maxNrOfWorkers();
+        int current;
+        do {
+            current = nrOfWorkers.get();
 
-        if (!(phase == JobPhase.SCHEDULING || phase == JobPhase.RUNNING)) {
+            if (current >= maxNrOfWorkers) {
+                log("creation of a new worker denied, we already "
+                        + "have at least " + maxNrOfWorkers + " workers");
+                return false;
+            }
+        } while (!nrOfWorkers.compareAndSet(current, current + 1));
+
+        // only the first worker moves the job from SCHEDULING to RUNNING
+        if (phase.compareAndSet(JobPhase.SCHEDULING, JobPhase.RUNNING)) {
+            phaseChanged(JobPhase.RUNNING);
+        } else if (phase.get() != JobPhase.RUNNING) {
+            nrOfWorkers.decrementAndGet();
             return false;
         }
-        setPhase(JobPhase.RUNNING);
 
         // phase == RUNNING
 
-        constituent.addWorker(workerID);
+        if (!constituent.addWorker(workerID)) {
+            // constituent removed in the mean time
+            nrOfWorkers.decrementAndGet();
+            return false;
+        }
+
+        changed(constituent);
 
-        if (closedWorld() && getNrOfWorkers() == maxNrOfWorkers()) {
+        if (closedWorld() && current + 1 == maxNrOfWorkers) {
             setPhase(JobPhase.CLOSED);
         }
 
@@ -598,15 +735,19 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         return true;
     }
 
-    private synchronized boolean closedWorld() {
+    private boolean closedWorld() {
         return !getBooleanAttribute(JobAttributes.MALLEABLE);
     }
 
-    private synchronized void removeWorker(UUID workerID,
-            Constituent constituent, Status status, int theExitStatus) {
+    private void removeWorker(UUID workerID, Constituent constituent,
+            Status status, int theExitStatus) {
         // FIXME: refactor all these if statements
 
-        constituent.removeWorker(workerID);
+        if (constituent.removeWorker(workerID)) {
+            nrOfWorkers.decrementAndGet();
+        }
+
+        changed(constituent);
 
         log("removed worker " + workerID + " on " + constituent
                 + " with exit status " + status + "(" + theExitStatus
@@ -624,7 +765,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         // update exit status
         setExitStatus(exitStatus);
 
-        if (phase == JobPhase.RUNNING) {
+        if (phase.get() == JobPhase.RUNNING) {
             if ((status == Status.DONE && getStringAttribute(
                     JobAttributes.ON_USER_EXIT).equalsIgnoreCase("close.world"))
                     || (status == Status.USER_ERROR && getStringAttribute(
@@ -654,7 +795,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
         }
 
-        if (phase == JobPhase.CLOSED) {
+        if (phase.get() == JobPhase.CLOSED) {
             if ((status == Status.DONE && getStringAttribute(
                     JobAttributes.ON_USER_EXIT).equalsIgnoreCase("cancel.job"))
                     || (status == Status.USER_ERROR && getStringAttribute(
@@ -674,12 +815,90 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             }
         }
 
-        if (phase == JobPhase.RUNNING
+        if (phase.get() == JobPhase.RUNNING
                 && !getBooleanAttribute(JobAttributes.MALLEABLE)) {
             setPhase(JobPhase.CLOSED);
         }
 
         log("now " + getNrOfWorkers() + " workers");
+
+        signal();
+    }
+
+    @Override
+    void workerFinished(Worker worker) {
+        signal();
+    }
+
+    /**
+     * Wakes up the job thread to react to some change.
+     */
+    private synchronized void signal() {
+        events = true;
+        notifyAll();
+    }
+
+    /**
+     * Makes the job thread retry (for instance claiming resources) after the
+     * given time, even if no event happens.
+     */
+    private synchronized void retryIn(long timeout) {
+        long time = System.currentTimeMillis() + timeout;
+
+        if (retryTime == 0 || time < retryTime) {
+            retryTime = time;
+        }
+    }
+
+    // time at which the job thread needs to check the job, if no event
+    // happens before that
+    private synchronized long nextTimeout() {
+        long result = Long.MAX_VALUE;
+
+        // auto cancel at deadline, only relevant while the job is running
+        if (phase.get().isBefore(JobPhase.COMPLETED)) {
+            result = deadline;
+        }
+
+        if (retryTime != 0) {
+            result = Math.min(result, retryTime);
+        }
+
+        // next advertisement
+        if (phase.get().isBefore(JobPhase.CLOSED)
+                && getNrOfWorkers() < maxNrOfWorkers()) {
+            result = Math.min(result, lastAdvertisement + advertTimeout);
+        }
+
+        // next constituent expiration
+        for (Constituent constituent : constituents.values()) {
+            result = Math.min(result, constituent.getExpirationDate() + 1);
+        }
+
+        return result;
+    }
+
+    // waits until an event happens or a timer expires
+    private synchronized void waitForEvent() {
+        while (!events) {
+            long timeout = nextTimeout() - System.currentTimeMillis();
+
+            if (timeout <= 0) {
+                break;
+            }
+
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
+        }
+
+        events = false;
+
+        if (retryTime != 0 && System.currentTimeMillis() >= retryTime) {
+            retryTime = 0;
+        }
     }
 
     private synchronized void removeFinishedLocalWorkers() {
@@ -708,8 +927,8 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             }
         }
 
-        if (localWorkers.size() == 0 && phase.isAfter(JobPhase.RUNNING)) {
-            if (constituents.remove(id) != null) {
+        if (localWorkers.size() == 0 && phase.get().isAfter(JobPhase.RUNNING)) {
+            if (removeConstituent(id)) {
                 log("unregisterred outselves, now " + constituents.size()
                         + " constituents");
                 for (UUID id : constituents.keySet()) {
@@ -720,17 +939,14 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     }
 
-    private synchronized void purgeExpiredConstituents() {
-        Iterator<Constituent> iterator = constituents.values().iterator();
-
-        while (iterator.hasNext()) {
-            Constituent constituent = iterator.next();
+    private void purgeExpiredConstituents() {
+        for (Constituent constituent : constituents.values()) {
             if (constituent.expired()) {
                 if (constituent.getID().equals(id)) {
                     // expired ourselves :(
                     constituent.resetExpirationDate();
                 } else {
-                    iterator.remove();
+                    removeConstituent(constituent.getID());
                     log("removed expired constituent: " + constituent);
                     logger.warn("removed expired constituent: " + constituent);
                 }
@@ -738,6 +954,63 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         }
     }
 
+    /**
+     * Orders the given constituents such that nodes close to each other (in
+     * latency, as estimated by their coordinates) are also close together in
+     * the order. Consecutive constituents end up in the same subtree when
+     * disseminating state updates.
+     */
+    private static Constituent[] orderByProximity(Constituent[] constituents,
+            Coordinates start) {
+        Constituent[] result = new Constituent[constituents.length];
+        ArrayList<Constituent> left = new ArrayList<Constituent>(Arrays
+                .asList(constituents));
+
+        Coordinates current = start;
+        for (int i = 0; i < result.length; i++) {
+            int nearest = 0;
+            double nearestDistance = Double.MAX_VALUE;
+
+            for (int j = 0; current != null && j < left.size(); j++) {
+                Coordinates coordinates = left.get(j).getInfo()
+                        .getCoordinates();
+                if (coordinates == null) {
+                    continue;
+                }
+                double distance = current.distance(coordinates);
+                if (distance < nearestDistance) {
+                    nearest = j;
+                    nearestDistance = distance;
+                }
+            }
+
+            result[i] = left.remove(nearest);
+            current = result[i].getInfo().getCoordinates();
+        }
+        return result;
+    }
+
+    // all constituents except ourselves, ordered by proximity
+    private synchronized Constituent[] getDisseminationOrder() {
+        if (disseminationOrder == null) {
+            ArrayList<Constituent> others = new ArrayList<Constituent>();
+            for (Constituent constituent : constituents.values()) {
+                if (!constituent.getID().equals(id)) {
+                    others.add(constituent);
+                }
+            }
+            disseminationOrder = orderByProximity(others
+                    .toArray(new Constituent[0]), node.getInfo()
+                    .getCoordinates());
+        }
+        return disseminationOrder;
+    }
+
+    /**
+     * Sends the current state to all constituents. The primary sends the
+     * state to (at most) "job.state.fanout" constituents, each of which
+     * forwards it to a part of the remaining constituents, and so on.
+     */
     private void sendStateUpdate() {
         Constituent[] constituents;
 
@@ -745,8 +1018,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             if (!dirty) {
                 return;
             }
-            constituents = this.constituents.values().toArray(
-                    new Constituent[0]);
+            constituents = getDisseminationOrder();
         }
 
         // initiate a callback
@@ -754,21 +1026,22 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             callback.callback();
         }
 
-        for (int i = 0; i < constituents.length; i++) {
-            if (constituents[i].getID().equals(id)) {
-                // do not send message to ourselves
-                continue;
+        for (Constituent[] group : StateUpdate.split(constituents, stateFanout)) {
+            // send changes since the oldest version acknowledged in this group
+            long knownVersion = Long.MAX_VALUE;
+            for (Constituent constituent : group) {
+                knownVersion = Math.min(knownVersion, ackedVersion(constituent
+                        .getID()));
             }
+            StateUpdate update = createStateUpdate(knownVersion);
 
-            try {
-                WriteMessage m = endPoint
-                        .send(constituents[i].getReceivePort());
-                m.writeInt(Copy.STATE_UPDATE);
-                writeDynamicState(m);
-                m.finish();
-            } catch (IOException e) {
-                log("could not send update to constituent: " + constituents[i],
-                        e);
+            ReceivePortIdentifier[] ports = new ReceivePortIdentifier[group.length];
+            for (int i = 0; i < group.length; i++) {
+                ports[i] = group[i].getReceivePort();
+            }
+
+            if (update.send(endPoint, ports, stateFanout) == -1) {
+                log("could not send update to any of " + Arrays.toString(group));
             }
         }
         synchronized (this) {
@@ -790,7 +1063,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                 return;
             }
 
-            if (phase.atLeast(JobPhase.CLOSED)) {
+            if (phase.get().atLeast(JobPhase.CLOSED)) {
                 logger.debug("not advertising, no more nodes needed");
                 return;
             }
@@ -831,20 +1104,36 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     }
 
-    private synchronized void setPhase(JobPhase newPhase) {
-        if (newPhase == phase) {
-            return;
-        } else if (newPhase.ordinal() < phase.ordinal()) {
+    private void setPhase(JobPhase newPhase) {
+        JobPhase oldPhase;
+        JobPhase phase;
+
+        do {
+            oldPhase = this.phase.get();
+
+            if (newPhase == oldPhase) {
+                return;
+            } else if (newPhase.ordinal() < oldPhase.ordinal()) {
+                phase = JobPhase.ERROR;
+            } else {
+                phase = newPhase;
+            }
+        } while (!this.phase.compareAndSet(oldPhase, phase));
+
+        if (phase != newPhase) {
             Exception e = new Exception("tried to revert phase!");
             log("error on setting phase", e);
-            phase = JobPhase.ERROR;
-        } else {
-            phase = newPhase;
         }
+
+        phaseChanged(phase);
+    }
+
+    private synchronized void phaseChanged(JobPhase phase) {
         log("phase now " + phase);
         logger.info("phase for job " + this + " now " + phase);
+        nextVersion();
         dirty = true;
-        notifyAll();
+        signal();
 
         if (phase.atLeast(JobPhase.RUNNING) && starttime == 0) {
             starttime = System.currentTimeMillis();
@@ -877,6 +1166,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                 return;
             }
 
+            JobPhase phase = this.phase.get();
             if (!(phase == JobPhase.SCHEDULING || phase == JobPhase.RUNNING)) {
                 logger.debug("cannot create new worker, wrong phase");
                 return;
@@ -884,16 +1174,19 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
             if (!node.jobService().resourcesAvailable(workerResources)) {
                 log("cannot claim resources");
+                retryIn(WAIT_TIMEOUT);
                 return; // might get more resources later
             }
 
             UUID workerID = Node.generateUUID();
             Worker worker = new Worker(this, workerID, node, deadline);
 
-            String hostname = node.jobService().addWorker(worker);
+            String hostname = node.jobService().addWorker(worker,
+                    workerResources);
 
             if (hostname == null) {
                 log("cannot claim resources");
+                retryIn(WAIT_TIMEOUT);
                 return; // might get more resources later
             }
 
@@ -936,6 +1229,14 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                 stdout.unexport();
             }
 
+            if (splitStdout != null) {
+                splitStdout.unexport();
+            }
+
+            if (splitStderr != null) {
+                splitStderr.unexport();
+            }
+
             if (stdin != null) {
                 stdin.close();
             }
@@ -965,7 +1266,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                 nodeInfo);
 
         synchronized (this) {
-            if (phase.isAfter(JobPhase.RUNNING)) {
+            if (phase.get().isAfter(JobPhase.RUNNING)) {
                 invocation.writeBoolean(false);
                 return;
             }
@@ -974,6 +1275,9 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             logger.info("adding new constituent: " + constituent);
 
             constituents.put(constituentID, constituent);
+            changed(constituent);
+            disseminationOrder = null;
+            signal();
         }
 
         invocation.writeBoolean(true);
@@ -1011,7 +1315,9 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         }
 
         invocation.writeObject(workerResources);
-        writeDynamicState(invocation);
+
+        // new constituent, always gets a snapshot
+        writeDynamicState(invocation, 0);
     }
 
     private void handleUpdateMaxNrOfWorkers(Invocation invocation,
@@ -1021,6 +1327,10 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         invocation.finishRead();
 
         constituent.setMaxNrOfWorkers(maxNrOfWorkers);
+
+        changed(constituent);
+
+        signal();
     }
 
     private void handleNewWorker(Invocation invocation, Constituent constituent)
@@ -1043,6 +1353,25 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         file.writeBootStrap(invocation);
     }
 
+    private void handleGetWorkerOutput(Invocation invocation,
+            Constituent constituent) throws IOException, Exception {
+        UUID workerID = (UUID) invocation.readObject();
+        boolean stderr = invocation.readBoolean();
+
+        OutputStream result;
+        if (stderr) {
+            result = getStderr(workerID);
+        } else {
+            result = getStdout(workerID);
+        }
+
+        if (!(result instanceof PrimaryOutputStream)) {
+            throw new Exception("no output stream for worker " + workerID);
+        }
+
+        ((PrimaryOutputStream) result).writeBootStrap(invocation);
+    }
+
     private void handleGetOutputFile(Invocation invocation,
             Constituent constituent) throws IOException, Exception {
         String path = invocation.readString();
@@ -1067,28 +1396,148 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         removeWorker(workerID, constituent, status, exitStatus);
     }
 
-    private synchronized void handleUnregister(Invocation invocation,
+    private void handleUnregister(Invocation invocation,
             Constituent constituent) throws Exception {
 
         // remove constituent from list
-        constituents.remove(constituent.getID());
+        removeConstituent(constituent.getID());
 
         log("removed constituent " + constituent);
         logger.info("removed constituent " + constituent);
 
+        signal();
+
         if (constituent.nrOfWorkers() > 0) {
             throw new Exception("removed constituent with workers remaining");
         }
     }
 
-    private synchronized void writeDynamicState(ObjectOutput output)
+    private long nextVersion() {
+        synchronized (stateLock) {
+            return ++stateVersion;
+        }
+    }
+
+    // marks the given constituent as changed in a new version of the state
+    private void changed(Constituent constituent) {
+        synchronized (stateLock) {
+            constituent.setVersion(++stateVersion);
+        }
+    }
+
+    private synchronized boolean removeConstituent(UUID constituentID) {
+        Constituent constituent = constituents.remove(constituentID);
+
+        if (constituent == null) {
+            return false;
+        }
+        nrOfWorkers.addAndGet(-constituent.remove());
+        removed(constituentID);
+        return true;
+    }
+
+    // records the removal of a constituent, so copies can be told about it
+    private synchronized void removed(UUID constituentID) {
+        synchronized (stateLock) {
+            removedConstituents.put(constituentID, ++stateVersion);
+
+            if (removedConstituents.size() > MAX_REMOVED_CONSTITUENTS) {
+                Iterator<Long> iterator = removedConstituents.values()
+                        .iterator();
+                oldestDeltaBase = iterator.next();
+                iterator.remove();
+            }
+        }
+        ackedVersions.remove(constituentID);
+        disseminationOrder = null;
+    }
+
+    /**
+     * Creates an update of the distributed state of this job. Only the
+     * constituents (and attributes) changed since the given version known by
+     * the receiver are included, or a snapshot of the whole state if the
+     * receiver's version is unknown or too old.
+     */
+    private StateUpdate createStateUpdate(long knownVersion) {
+        StateUpdate result = new StateUpdate();
+
+        // does not call out while holding the lock
+        synchronized (stateLock) {
+            result.version = stateVersion;
+
+            if (knownVersion < oldestDeltaBase || knownVersion > stateVersion) {
+                result.snapshot = true;
+                result.attributes = attributes;
+                result.constituents = new HashMap<UUID, Constituent>(
+                        constituents);
+                result.removed = new UUID[0];
+            } else {
+                result.snapshot = false;
+                result.base = knownVersion;
+
+                if (attributesVersion > knownVersion) {
+                    result.attributes = attributes;
+                }
+
+                result.constituents = new HashMap<UUID, Constituent>();
+                for (Constituent constituent : constituents.values()) {
+                    if (constituent.getVersion() > knownVersion) {
+                        result.constituents.put(constituent.getID(),
+                                constituent);
+                    }
+                }
+
+                ArrayList<UUID> removed = new ArrayList<UUID>();
+                for (Map.Entry<UUID, Long> entry : removedConstituents
+                        .entrySet()) {
+                    if (entry.getValue() > knownVersion) {
+                        removed.add(entry.getKey());
+                    }
+                }
+                result.removed = removed.toArray(new UUID[0]);
+            }
+        }
+
+        result.status = getStats();
+        result.phase = phase.get();
+        result.moreWorkersNeeded = moreWorkersNeeded();
+        result.remaining = deadline - System.currentTimeMillis();
+
+        return result;
+    }
+
+    // version of the state the given constituent last reported to have, 0 if
+    // unknown
+    private long ackedVersion(UUID constituentID) {
+        Long result = ackedVersions.get(constituentID);
+
+        if (result == null) {
+            return 0;
+        }
+        return result;
+    }
+
+    private void acknowledged(UUID constituentID, long version) {
+        while (true) {
+            Long current = ackedVersions.putIfAbsent(constituentID, version);
+
+            if (current == null || current >= version
+                    || ackedVersions.replace(constituentID, current, version)) {
+                break;
+            }
+        }
+
+        if (!constituents.containsKey(constituentID)) {
+            // removed in the mean time
+            ackedVersions.remove(constituentID);
+        }
+    }
+
+    // the update is created first, and written without holding any lock, so a
+    // slow reader does not block the job
+    private void writeDynamicState(ObjectOutput output, long knownVersion)
             throws IOException {
-        output.writeObject(getStats());
-        output.writeObject(attributes);
-        output.writeObject(phase);
-        output.writeObject(constituents);
-        output.writeBoolean(moreWorkersNeeded());
-        output.writeLong(deadline - System.currentTimeMillis());
+        createStateUpdate(knownVersion).writeTo(output);
     }
 
     public void invoke(Invocation invocation) throws Exception {
@@ -1104,12 +1553,12 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             }
 
             UUID constituentID = (UUID) invocation.readObject();
+            // version of the state known by the constituent
+            long knownVersion = invocation.readLong();
 
             log("received an invocation (" + opcode + ") from " + constituentID);
 
-            synchronized (this) {
-                constituent = constituents.get(constituentID);
-            }
+            constituent = constituents.get(constituentID);
 
             if (constituent == null) {
                 throw new Exception("unknown costituent ("
@@ -1118,6 +1567,7 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             }
 
             constituent.resetExpirationDate();
+            acknowledged(constituentID, knownVersion);
 
             switch (opcode) {
             case Primary.REQUEST_STATE:
@@ -1135,6 +1585,9 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             case Primary.GET_OUTPUT_FILE:
                 handleGetOutputFile(invocation, constituent);
                 break;
+            case Primary.GET_WORKER_OUTPUT:
+                handleGetWorkerOutput(invocation, constituent);
+                break;
             case Primary.REMOVE_WORKER:
                 handleRemoveWorker(invocation, constituent);
                 break;
@@ -1144,7 +1597,8 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             default:
                 throw new Exception("unknown opcode in message");
             }
-            writeDynamicState(invocation);
+
+            writeDynamicState(invocation, knownVersion);
         } catch (ClassNotFoundException e) {
             log("class not found on reading from message", e);
             throw new Exception("class not found on reading from message", e);
@@ -1178,7 +1632,8 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             UUID workerID = Node.generateUUID();
             Worker worker = new Worker(this, workerID, node, deadline);
 
-            String hostname = node.jobService().addWorker(worker);
+            String hostname = node.jobService().addWorker(worker,
+                    workerResources, nrOfWorkers - i);
 
             if (hostname == null) {
                 logger.debug("cannot claim resources");
@@ -1199,7 +1654,8 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
         int maxNrOfWorkers = 0;
 
         if (node.jobService().resourcesAvailable(workerResources)) {
-            maxNrOfWorkers = node.jobService().freeNodes();
+            maxNrOfWorkers = node.jobService().nrOfWorkersAvailable(this,
+                    workerResources);
         }
 
         synchronized (this) {
@@ -1217,13 +1673,155 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             }
 
             constituent.setMaxNrOfWorkers(maxNrOfWorkers);
+
+            changed(constituent);
         }
     }
 
-    public synchronized Constituent[] getConstituents() {
+    public Constituent[] getConstituents() {
         return constituents.values().toArray(new Constituent[0]);
     }
 
+    /**
+     * A call to a single constituent while claiming nodes. Calls to all
+     * constituents are done in parallel, each in its own thread.
+     */
+    private final class ClaimCall implements Runnable {
+
+        private final Constituent constituent;
+
+        private final int opcode;
+
+        private final int nrOfWorkers;
+
+        // workers of the constituent, result of a CREATE_WORKERS call
+        private UUID[] workers = null;
+
+        private Exception exception = null;
+
+        private boolean done = false;
+
+        ClaimCall(Constituent constituent, int opcode, int nrOfWorkers) {
+            this.constituent = constituent;
+            this.opcode = opcode;
+            this.nrOfWorkers = nrOfWorkers;
+        }
+
+        private void local() {
+            synchronized (Primary.this) {
+                if (opcode == Copy.CREATE_WORKERS) {
+                    workers = createWorkers(nrOfWorkers);
+                } else if (opcode == Copy.START_WORKERS) {
+                    for (Worker worker : localWorkers.values()) {
+                        worker.start();
+                    }
+                } else {
+                    for (Worker worker : localWorkers.values()) {
+                        // tell the worker to go away, releases its resources
+                        // if it was not started yet
+                        worker.abort();
+                    }
+                    localWorkers.clear();
+                }
+            }
+        }
+
+        private void remote() throws Exception {
+            Call call = endPoint.call(constituent.getReceivePort());
+            call.writeInt(opcode);
+            if (opcode == Copy.CREATE_WORKERS) {
+                call.writeInt(nrOfWorkers);
+            }
+            call.call();
+            if (opcode == Copy.CREATE_WORKERS) {
+                UUID[] workers = (UUID[]) call.readObject();
+                synchronized (this) {
+                    this.workers = workers;
+                }
+            }
+            call.finish();
+        }
+
+        public void run() {
+            try {
+                if (constituent.getID().equals(id)) {
+                    // that's us :)
+                    local();
+                } else {
+                    remote();
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    exception = e;
+                }
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until this call is done, or the given deadline passes.
+         * 
+         * @return true if the call succeeded
+         */
+        synchronized boolean waitUntilDone(long deadline) {
+            while (!done) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    exception = new Exception("call to " + constituent
+                            + " timed out");
+                    return false;
+                }
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+            return exception == null;
+        }
+
+        synchronized UUID[] getWorkers() {
+            return workers;
+        }
+
+        synchronized Exception getException() {
+            return exception;
+        }
+    }
+
+    /**
+     * Does the given calls in parallel, and waits until all are done or the
+     * claim timeout expires.
+     * 
+     * @return the calls that failed or timed out
+     */
+    private List<ClaimCall> callAll(List<ClaimCall> calls) {
+        for (ClaimCall call : calls) {
+            ThreadPool.createNew(call, "claim call to " + call.constituent);
+        }
+
+        long deadline = System.currentTimeMillis() + CLAIM_TIMEOUT;
+
+        List<ClaimCall> result = new ArrayList<ClaimCall>();
+        for (ClaimCall call : calls) {
+            if (!call.waitUntilDone(deadline)) {
+                result.add(call);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Claims nodes for a non-malleable job. Workers are reserved on all
+     * constituents in parallel (reserving more on other constituents if some
+     * have less room than they advertised). If enough workers are reserved,
+     * they are started, otherwise all reserved workers are destroyed again,
+     * both in parallel as well.
+     */
     private void claimNodes() {
         if (getBooleanAttribute(JobAttributes.MALLEABLE)) {
             log("ERROR: claiming nodes for a malleable job", new Exception());
@@ -1231,6 +1829,11 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             return;
         }
 
+        if (System.currentTimeMillis() < nextClaim) {
+            // backing off after a failed attempt
+            return;
+        }
+
         log("claiming nodes");
         Constituent[] constituents;
 
@@ -1249,114 +1852,122 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
             return;
         }
 
-        int currentNrOfWorkers = getNrOfWorkers();
-
-        if (currentNrOfWorkers != 0) {
+        if (getNrOfWorkers() != 0) {
             log("ERROR: number of workers not 0 before claiming workers");
         }
 
         log("creating workers");
 
-        for (Constituent constituent : constituents) {
-            if (currentNrOfWorkers == neededNrOfWorkers) {
+        // constituents asked to create workers, and constituents that cannot
+        // create any more
+        Set<Constituent> claimed = new HashSet<Constituent>();
+        Set<Constituent> full = new HashSet<Constituent>();
+
+        while (getNrOfWorkers() < neededNrOfWorkers) {
+            int remaining = neededNrOfWorkers - getNrOfWorkers();
+
+            List<ClaimCall> calls = new ArrayList<ClaimCall>();
+            for (Constituent constituent : getConstituents()) {
+                if (remaining == 0) {
+                    break;
+                }
+                if (full.contains(constituent)) {
+                    continue;
+                }
+                int room = constituent.getMaxNrOfWorkers()
+                        - constituent.nrOfWorkers();
+                if (room <= 0) {
+                    continue;
+                }
+                int nrOfWorkers = Math.min(room, remaining);
+                calls.add(new ClaimCall(constituent, Copy.CREATE_WORKERS,
+                        nrOfWorkers));
+                claimed.add(constituent);
+                remaining -= nrOfWorkers;
+            }
+
+            if (calls.size() == 0) {
+                log("no constituents left to create workers on");
                 break;
             }
 
-            try {
-                if (constituent.getID().equals(id)) {
-                    // that's us :)
-                    UUID[] workers = createWorkers(neededNrOfWorkers
-                            - currentNrOfWorkers);
-                    constituent.setWorkers(workers);
-                    currentNrOfWorkers += workers.length;
-                    log(workers.length + " created at " + constituent);
+            List<ClaimCall> failed = callAll(calls);
+
+            for (ClaimCall call : calls) {
+                Constituent constituent = call.constituent;
+
+                if (failed.contains(call)) {
+                    removeConstituent(constituent.getID());
+                    log("exception on creating worker, removed constituent",
+                            call.getException());
                     continue;
                 }
 
-                Call call = endPoint.call(constituent.getReceivePort());
-                call.writeInt(Copy.CREATE_WORKERS);
-                call.writeInt(neededNrOfWorkers - currentNrOfWorkers);
-                call.call();
-                synchronized (this) {
-                    UUID[] workers = (UUID[]) call.readObject();
-                    constituent.setWorkers(workers);
-                    currentNrOfWorkers += workers.length;
-                    log(workers.length + " created at " + constituent);
-                }
-                call.finish();
-            } catch (Exception e) {
-                synchronized (this) {
-                    this.constituents.remove(constituent.getID());
+                int created = constituent.setWorkers(call.getWorkers());
+                nrOfWorkers.addAndGet(created);
+                changed(constituent);
+                log(created + " created at " + constituent);
+
+                if (created < call.nrOfWorkers) {
+                    // could not create all workers asked for
+                    full.add(constituent);
                 }
-                log("exception on creating worker, removed constituent", e);
             }
         }
-        // one or more constituents might have been removed
-        constituents = getConstituents();
 
-        currentNrOfWorkers = getNrOfWorkers();
-        log("now " + currentNrOfWorkers + " workers");
+        log("now " + getNrOfWorkers() + " workers");
 
         // we chould have enought workers now, try to start them...
-        try {
-            if (getNrOfWorkers() == neededNrOfWorkers) {
-                log("starting workers");
-
-                for (Constituent constituent : constituents) {
-                    if (constituent.getID().equals(id)) {
-                        // that's us :)
-                        synchronized (this) {
-                            for (Worker worker : localWorkers.values()) {
-                                worker.start();
-                            }
-                        }
-                        continue;
-                    } else {
-                        Call call = endPoint.call(constituent.getReceivePort());
-                        call.writeInt(Copy.START_WORKERS);
-                        call.call();
-                        call.finish();
-                    }
+        if (getNrOfWorkers() == neededNrOfWorkers) {
+            log("starting workers");
+
+            List<ClaimCall> calls = new ArrayList<ClaimCall>();
+            for (Constituent constituent : getConstituents()) {
+                if (constituent.nrOfWorkers() > 0) {
+                    calls.add(new ClaimCall(constituent, Copy.START_WORKERS, 0));
                 }
+            }
 
+            List<ClaimCall> failed = callAll(calls);
+
+            if (failed.isEmpty()) {
                 log("succes in claiming nodes");
                 setPhase(JobPhase.CLOSED);
                 return;
             }
 
-        } catch (Exception e) {
-            log("exception on starting workers", e);
+            for (ClaimCall call : failed) {
+                log("exception on starting workers", call.getException());
+            }
         }
 
-        log("destroying workers");
-        for (Constituent constituent : constituents) {
-            if (constituent.getID().equals(id)) {
-                // that's us :)
-                synchronized (this) {
-                    for (Worker worker : localWorkers.values()) {
-                        worker.signal(0); // tell the worker to go away
-                    }
-                    localWorkers.clear();
-                    constituent.setWorkers(new UUID[0]);
-                }
+        log("destroying workers, trying again in " + claimBackoff + " ms");
+
+        nextClaim = System.currentTimeMillis() + claimBackoff;
+        claimBackoff = Math.min(claimBackoff * 2, MAX_CLAIM_BACKOFF);
+
+        // also includes constituents removed after a failure, they may still
+        // have created workers
+        List<ClaimCall> calls = new ArrayList<ClaimCall>();
+        for (Constituent constituent : claimed) {
+            calls.add(new ClaimCall(constituent, Copy.DESTROY_WORKERS, 0));
+        }
+
+        List<ClaimCall> failed = callAll(calls);
+
+        for (ClaimCall call : calls) {
+            Constituent constituent = call.constituent;
+
+            if (failed.contains(call)) {
+                removeConstituent(constituent.getID());
+                log("exception on destroying workers, removed constituent",
+                        call.getException());
                 continue;
             }
 
-            try {
-                Call call = endPoint.call(constituent.getReceivePort());
-                call.writeInt(Copy.DESTROY_WORKERS);
-                call.call();
-                call.finish();
-                // clear worker set
-                synchronized (this) {
-                    constituent.setWorkers(new UUID[0]);
-                }
-            } catch (Exception e) {
-                synchronized (this) {
-                    this.constituents.remove(constituent.getID());
-                }
-                log("exception on destroying workers, removed constituent", e);
-            }
+            // clear worker set
+            nrOfWorkers.addAndGet(constituent.setWorkers(new UUID[0]));
+            changed(constituent);
         }
     }
 
@@ -1379,36 +1990,42 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
                     && !getBooleanAttribute(JobAttributes.MALLEABLE)) {
                 updateLocalMaxWorkers();
                 claimNodes();
+
+                if (getPhase() == JobPhase.SCHEDULING) {
+                    // not enough nodes yet, try again later
+                    retryIn(WAIT_TIMEOUT);
+                }
             }
 
             synchronized (this) {
-                if (System.currentTimeMillis() > deadline) {
+                if (phase.get().isBefore(JobPhase.COMPLETED)
+                        && System.currentTimeMillis() > deadline) {
                     // auto cancel job
                     setPhase(JobPhase.CANCELLED);
                 }
 
                 // update state if needed when all constituents exit
-                if (phase == JobPhase.CLOSED && constituents.size() == 0) {
+                if (phase.get() == JobPhase.CLOSED && constituents.size() == 0) {
                     setPhase(JobPhase.POST_STAGING);
                     setPhase(JobPhase.COMPLETED);
                 }
 
-                if (phase.atLeast(JobPhase.COMPLETED)) {
+                if (phase.get().atLeast(JobPhase.COMPLETED)) {
                     killWorkers();
 
                     if (constituents.size() == 0) {
                         log("job done, nobody left but us, turning of the light");
                         done = true;
+                    } else {
+                        // check again later for constituents leaving
+                        retryIn(WAIT_TIMEOUT);
                     }
                 }
 
             }
-            synchronized (this) {
-                try {
-                    wait(WAIT_TIMEOUT);
-                } catch (InterruptedException e) {
-                    // IGNORE
-                }
+
+            if (!done) {
+                waitForEvent();
             }
         }
         // issue final state update callbacks
@@ -1448,12 +2065,36 @@ public final class Primary extends ZorillaJob implements Runnable, Receiver {
 
     @Override
     public void readStderr(OutputStream out) throws Exception {
-        stderr.streamTo(out);
+        if (splitStderr != null) {
+            splitStderr.streamTo(out);
+        } else {
+            stderr.streamTo(out);
+        }
+    }
+
+    @Override
+    public void readStderr(UUID worker, OutputStream out) throws Exception {
+        if (splitStderr == null) {
+            throw new Exception("standard err of " + this + " not split");
+        }
+        splitStderr.streamTo(worker, out);
     }
 
     @Override
     public void readStdout(OutputStream out) throws Exception {
-        stdout.streamTo(out);
+        if (splitStdout != null) {
+            splitStdout.streamTo(out);
+        } else {
+            stdout.streamTo(out);
+        }
+    }
+
+    @Override
+    public void readStdout(UUID worker, OutputStream out) throws Exception {
+        if (splitStdout == null) {
+            throw new Exception("standard out of " + this + " not split");
+        }
+        splitStdout.streamTo(worker, out);
     }
 
     public void readOutputFile(String sandboxPath, ObjectOutputStream out)
@@ -1,6 +1,7 @@
 package ibis.zorilla.job;
 
 import ibis.ipl.ReadMessage;
+import ibis.zorilla.Config;
 import ibis.zorilla.Node;
 import ibis.zorilla.io.ObjectOutput;
 import ibis.zorilla.job.net.EndPoint;
@@ -14,7 +15,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.apache.log4j.Logger;
 
@@ -22,8 +29,14 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
 
     public static final int BUFFER_SIZE = 100 * 1024;
 
+    // size of the write behind buffer
+    public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     static final int WRITE_BLOCK = 0;
 
+    // compressed data from a copy, see receiveCompressed()
+    static final int WRITE_COMPRESSED = 1;
+
     private static final Logger logger = Logger
             .getLogger(PrimaryOutputStream.class);
 
@@ -42,8 +55,39 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
 
     private boolean done = false;
 
+    // split output this stream is part of (if any), and our number in it
+    private final SplitOutputStream split;
+
+    private final int streamNr;
+
+    // if true, data is received compressed (with deflate)
+    private final boolean compressed;
+
+    /**
+     * Decompression state of a single sending stream. Every copy compresses
+     * with a window of only its own data, so each needs its own inflater and
+     * window here. Guarded by its own lock, not the lock of this stream, so
+     * readers are not blocked while we wait for data from the network.
+     */
+    private static final class Decompressor {
+        private final Inflater inflater = new Inflater();
+
+        private final CompressionWindow window = new CompressionWindow();
+    }
+
+    private final Map<UUID, Decompressor> decompressors = new HashMap<UUID, Decompressor>();
+
+    // total size of the file, including data still in the write buffer
     private long size = 0;
 
+    // long lived channel to the file, opened on the first write
+    private FileChannel channel = null;
+
+    // data not yet written to the file, starts at offset "size - buffered"
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+
+    private int buffered = 0;
+
     /**
      * Creates a stream which appends to the given file.
      * 
@@ -59,9 +103,13 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
 
         this.primary = primary;
         sandboxPath = "<log file>";
+        split = null;
+        streamNr = -1;
 
         id = Node.generateUUID();
 
+        compressed = compressOutput(primary);
+
         if (export) {
             endPoint = primary.newEndPoint(id.toString(), this);
         } else {
@@ -77,9 +125,20 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
      */
     public PrimaryOutputStream(String sandboxPath, File file, Primary primary)
             throws Exception, IOException {
+        this(sandboxPath, file, primary, null, -1);
+    }
+
+    /**
+     * Creates a stream for a single worker, part of the given split output.
+     */
+    PrimaryOutputStream(String sandboxPath, File file, Primary primary,
+            SplitOutputStream split, int streamNr) throws Exception,
+            IOException {
         this.sandboxPath = sandboxPath;
         this.primary = primary;
         this.file = file;
+        this.split = split;
+        this.streamNr = streamNr;
 
         if (sandboxPath == null) {
             throw new Exception("sandbox path cannot be null");
@@ -115,32 +174,79 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
 
         id = Node.generateUUID();
 
+        compressed = compressOutput(primary);
+
         endPoint = primary.newEndPoint(id.toString(), this);
     }
 
+    private static boolean compressOutput(Primary primary) {
+        return primary.getNode().config().getBooleanProperty(
+                Config.OUTPUT_COMPRESSION);
+    }
+
     public String sandboxPath() {
         return sandboxPath;
     }
 
+    File getFile() {
+        return file;
+    }
+
+    // returns the channel to the file, (re)opening it if needed
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = new FileOutputStream(file, true).getChannel();
+
+            if (channel.size() != size - buffered) {
+                logger.warn("write: warning: file of length " + channel.size()
+                        + " should be of size " + (size - buffered));
+            }
+        }
+        return channel;
+    }
+
+    private void writeFully(byte[] data, int offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        FileChannel channel = channel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // write buffered data to the file
+    private void flushBuffer() throws IOException {
+        if (buffered > 0) {
+            writeFully(writeBuffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
     @Override
     public synchronized void write(byte[] data, int offset, int length)
             throws IOException {
-        logger.debug("writing to " + sandboxPath + " stored in " + file);
+        if (logger.isTraceEnabled()) {
+            logger.trace("writing to " + sandboxPath + " stored in " + file);
+        }
 
-        FileOutputStream out = new FileOutputStream(file, true);
+        if (buffered + length > writeBuffer.length) {
+            flushBuffer();
+        }
 
-        out.write(data, offset, length);
-        out.flush();
+        if (length >= writeBuffer.length) {
+            // too big to buffer
+            writeFully(data, offset, length);
+        } else {
+            System.arraycopy(data, offset, writeBuffer, buffered, length);
+            buffered += length;
+        }
 
-        out.close();
+        if (split != null) {
+            split.written(streamNr, size, length);
+        }
 
         size += length;
 
-        if (file.length() != size) {
-            logger.warn("write: warning: file of length " + file.length()
-                    + " should be of size " + size);
-        }
-
         notifyAll();
     }
 
@@ -160,8 +266,8 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
     }
 
     @Override
-    public void flush() throws IOException {
-        // NOTHING
+    public synchronized void flush() throws IOException {
+        flushBuffer();
     }
 
     @Override
@@ -174,6 +280,19 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
         done = true;
         notifyAll();
 
+        try {
+            flushBuffer();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            throw new Exception("could not write " + file, e);
+        }
+
+        // inflaters may still be in use by a sender, so are not ended here
+        decompressors.clear();
+
         if (endPoint != null) {
             try {
                 endPoint.close();
@@ -191,6 +310,7 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
         output.writeString(sandboxPath());
         output.writeObject(id);
         output.writeObject(endPoint.getID());
+        output.writeBoolean(compressed);
     }
 
     public void receive(Message message) {
@@ -216,9 +336,115 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
         }
     }
 
+    private synchronized Decompressor getDecompressor(UUID sender)
+            throws IOException {
+        if (done) {
+            throw new IOException("stream " + sandboxPath + " already closed");
+        }
+
+        Decompressor result = decompressors.get(sender);
+        if (result == null) {
+            result = new Decompressor();
+            decompressors.put(sender, result);
+        }
+        return result;
+    }
+
+    // forget a sender we are out of sync with, all its data is rejected from
+    // now on
+    private synchronized void removeDecompressor(UUID sender) {
+        Decompressor decompressor = decompressors.remove(sender);
+
+        if (decompressor != null) {
+            decompressor.inflater.end();
+        }
+    }
+
+    // every call is compressed separately, with the window of data previously
+    // received from the same sender as dictionary. Calls of a single sender
+    // are handled one at a time.
+    private void receiveCompressed(Invocation invocation) throws IOException {
+        UUID sender;
+        try {
+            sender = (UUID) invocation.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("could not read sender: " + e);
+        }
+
+        Decompressor decompressor = getDecompressor(sender);
+
+        synchronized (decompressor) {
+            Inflater inflater = decompressor.inflater;
+            CompressionWindow window = decompressor.window;
+
+            try {
+                logger.debug("writing to file from compressed data");
+
+                inflater.reset();
+
+                byte[] buffer = new byte[BUFFER_SIZE];
+                byte[] data = new byte[BUFFER_SIZE];
+
+                while (true) {
+                    int length = invocation.readInt();
+
+                    if (length == -1) {
+                        // done
+                        invocation.finishRead();
+
+                        if (!inflater.finished()) {
+                            throw new IOException("compressed data incomplete");
+                        }
+                        return;
+                    }
+
+                    invocation.readArray(buffer, 0, length);
+                    inflater.setInput(buffer, 0, length);
+
+                    while (true) {
+                        int inflated = inflater.inflate(data);
+
+                        if (inflated > 0) {
+                            write(data, 0, inflated);
+                            window.update(data, 0, inflated);
+                        } else if (inflater.needsDictionary()) {
+                            window.setDictionary(inflater);
+                        } else {
+                            // needs input, or finished
+                            break;
+                        }
+                    }
+                }
+            } catch (DataFormatException e) {
+                removeDecompressor(sender);
+                throw new IOException("could not decompress output: " + e);
+            } catch (IllegalArgumentException e) {
+                // dictionary does not match
+                removeDecompressor(sender);
+                throw new IOException("could not decompress output: " + e);
+            } catch (IOException e) {
+                removeDecompressor(sender);
+                throw e;
+            }
+        }
+    }
+
     public void invoke(Invocation invocation) throws Exception, IOException {
-        throw new Exception("cannot invoke primary output file");
+        int opcode = invocation.readInt();
+
+        switch (opcode) {
+        case WRITE_COMPRESSED:
+            if (!compressed) {
+                throw new Exception("received compressed data for "
+                        + sandboxPath + ", which is not compressed");
+            }
+            receiveCompressed(invocation);
+            break;
+        default:
+            throw new Exception("unknown opcode in request: " + opcode);
+        }
 
+        invocation.finish();
     }
 
     void readFrom(InputStream data) throws IOException {
@@ -241,75 +467,78 @@ final class PrimaryOutputStream extends OutputStream implements Receiver {
         return "sandbox path = " + sandboxPath + ", file = " + file;
     }
 
-    // fetch data from the output file
-    private synchronized int getData(long offset, byte[] buffer)
+    // fetch (at most length bytes of) data from the output file, or from the
+    // write buffer. Waits until data is available at the given offset.
+    int getData(long offset, byte[] buffer, int length, FileChannel in)
             throws IOException {
-        logger.debug("getting data");
+        long flushed;
 
-        while (true) {
-            FileInputStream in = new FileInputStream(file);
-
-            if (in.skip(offset) == offset && in.available() > 0) {
-                int result = in.read(buffer);
-
-                in.close();
-
-                return result;
+        synchronized (this) {
+            while (offset >= size && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
             }
 
-            in.close();
-
-            if (done) {
+            if (offset >= size) {
                 logger.debug("no more data");
                 // no more data
                 return -1;
             }
 
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                // IGNORE
-            }
+            flushed = size - buffered;
 
+            if (offset >= flushed) {
+                int result = (int) Math.min(length, size - offset);
+                System.arraycopy(writeBuffer, (int) (offset - flushed),
+                        buffer, 0, result);
+                return result;
+            }
         }
 
+        // data before "flushed" never changes, read it without holding the
+        // lock
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(length,
+                flushed - offset));
+        while (data.hasRemaining()) {
+            if (in.read(data, offset + data.position()) == -1) {
+                throw new IOException("file " + file + " shorter than expected");
+            }
+        }
+        return data.position();
     }
 
     public void streamTo(OutputStream out) throws IOException {
         long offset = 0;
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[BUFFER_SIZE];
 
-        synchronized (this) {
-            if (file.length() != size) {
-                logger.warn("streamto: warning: file of length "
-                        + file.length() + " should be of size " + size);
-            }
-        }
+        // every reader has its own channel to the file
+        FileChannel in = new FileInputStream(file).getChannel();
 
-        while (true) {
-            int read = getData(offset, buffer);
+        try {
+            while (true) {
+                int read = getData(offset, buffer, buffer.length, in);
 
-            if (read == -1) {
-                // EOF :)
-                logger.debug("done streaming file, streamed " + offset
-                        + " bytes");
-                return;
-            }
+                if (read == -1) {
+                    // EOF :)
+                    logger.debug("done streaming file, streamed " + offset
+                            + " bytes");
+                    return;
+                }
 
-            out.write(buffer, 0, read);
-            out.flush();
+                out.write(buffer, 0, read);
+                out.flush();
 
-            offset = offset + read;
+                offset = offset + read;
+            }
+        } finally {
+            in.close();
         }
-
     }
 
     public synchronized long length() throws IOException {
-        if (file.length() != size) {
-            logger.warn("length(): warning: file " + file + " of length "
-                    + file.length() + " should be of size " + size);
-        }
-
         return size;
     }
 
@@ -2,7 +2,9 @@ package ibis.zorilla.job;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * specification of a set of resources. Could be used to specify needed
@@ -18,50 +20,185 @@ public final class Resources implements Serializable {
 
     private final int diskSpace; // MB
 
+    // custom resources (for instance accelerators), by name
+    private final Map<String, Integer> counters;
+
+    /**
+     * Parses a comma separated list of name=amount pairs of custom resources.
+     */
+    public static Map<String, Integer> parseCounters(String string)
+            throws Exception {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+
+        if (string == null) {
+            return result;
+        }
+
+        for (String element : string.split(",")) {
+            element = element.trim();
+            if (element.length() == 0) {
+                continue;
+            }
+
+            String[] pair = element.split("=");
+            if (pair.length != 2) {
+                throw new Exception("invalid custom resource: " + element);
+            }
+            int amount;
+            try {
+                amount = Integer.parseInt(pair[1].trim());
+            } catch (NumberFormatException e) {
+                throw new Exception("invalid amount of custom resource: "
+                        + element, e);
+            }
+            if (amount < 0) {
+                throw new Exception("amount of custom resource must not be"
+                        + " negative: " + element);
+            }
+            result.put(pair[0].trim(), amount);
+        }
+        return result;
+    }
+
     public Resources() {
-        this.cores = 0;
-        this.memory = 0;
-        this.diskSpace = 0;
+        this(0, 0, 0);
     }
 
     public Resources(int cores, int memory, int diskspace) {
+        this(cores, memory, diskspace, new HashMap<String, Integer>());
+    }
+
+    public Resources(int cores, int memory, int diskspace,
+            Map<String, Integer> counters) {
         this.cores = cores;
         this.memory = memory;
         this.diskSpace = diskspace;
+        this.counters = new HashMap<String, Integer>(counters);
     }
 
-    public Resources(JobAttributes attributes) {
-        cores = 1;
+    public Resources(JobAttributes attributes) throws Exception {
+        cores = attributes.getIntProperty(JobAttributes.CORES, 1);
         memory = attributes.getIntProperty(JobAttributes.MEMORY_MAX);
         diskSpace = attributes.getIntProperty(JobAttributes.DISK_SPACE);
+        counters = parseCounters(attributes
+                .getProperty(JobAttributes.CUSTOM_RESOURCES));
+
+        // needed resources are subtracted from the free resources of a node,
+        // negative amounts would make it look bigger than it is
+        if (!greaterOrEqualZero()) {
+            throw new Exception("negative amount of resources needed: " + this);
+        }
+    }
+
+    // Resources written by older versions have no custom counters
+    private Object readResolve() {
+        if (counters == null) {
+            return new Resources(cores, memory, diskSpace);
+        }
+        return this;
     }
 
     public Resources(Resources original) {
-        this.cores = original.cores;
-        this.memory = original.memory;
-        this.diskSpace = original.diskSpace;
+        this(original.cores, original.memory, original.diskSpace,
+                original.counters);
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public int getMemory() {
+        return memory;
+    }
+
+    public int getDiskSpace() {
+        return diskSpace;
+    }
+
+    public int getCounter(String name) {
+        Integer result = counters.get(name);
+
+        if (result == null) {
+            return 0;
+        }
+        return result;
+    }
+
+    private Set<String> counterNames(Resources other) {
+        Set<String> result = new HashSet<String>(counters.keySet());
+        result.addAll(other.counters.keySet());
+        return result;
     }
 
     public Resources subtract(Resources other) {
-        return new Resources(cores - other.cores, memory
-                - other.memory, diskSpace - other.diskSpace);
+        Map<String, Integer> counters = new HashMap<String, Integer>();
+        for (String name : counterNames(other)) {
+            counters.put(name, getCounter(name) - other.getCounter(name));
+        }
+
+        return new Resources(cores - other.cores, memory - other.memory,
+                diskSpace - other.diskSpace, counters);
     }
 
     public Resources add(Resources other) {
-        return new Resources(cores + other.cores, memory
-                + other.memory, diskSpace + other.diskSpace);
+        Map<String, Integer> counters = new HashMap<String, Integer>();
+        for (String name : counterNames(other)) {
+            counters.put(name, getCounter(name) + other.getCounter(name));
+        }
+
+        return new Resources(cores + other.cores, memory + other.memory,
+                diskSpace + other.diskSpace, counters);
     }
 
     public Resources mult(int factor) {
-        return new Resources(cores * factor, memory * factor,
-                diskSpace * factor);
+        Map<String, Integer> counters = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : this.counters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue() * factor);
+        }
+
+        return new Resources(cores * factor, memory * factor, diskSpace
+                * factor, counters);
+    }
+
+    /**
+     * Returns how many times the given resources fit in these resources,
+     * Integer.MAX_VALUE if the given resources are zero.
+     */
+    public int fits(Resources needed) {
+        int result = Integer.MAX_VALUE;
+
+        result = fits(result, cores, needed.cores);
+        result = fits(result, memory, needed.memory);
+        result = fits(result, diskSpace, needed.diskSpace);
+        for (String name : counterNames(needed)) {
+            result = fits(result, getCounter(name), needed.getCounter(name));
+        }
+
+        return result;
+    }
+
+    private static int fits(int result, int available, int needed) {
+        if (needed <= 0) {
+            return result;
+        }
+        return Math.min(result, Math.max(available, 0) / needed);
     }
 
     public boolean zero() {
+        for (int counter : counters.values()) {
+            if (counter != 0) {
+                return false;
+            }
+        }
         return cores == 0 && memory == 0 & diskSpace == 0;
     }
 
     public boolean greaterOrEqualZero() {
+        for (int counter : counters.values()) {
+            if (counter < 0) {
+                return false;
+            }
+        }
         return  cores >= 0 && memory >= 0 && diskSpace >= 0;
     }
 
@@ -71,7 +208,7 @@ public final class Resources implements Serializable {
 
     public String toString() {
         return "resources: cores = " + cores + ", memory="
-                + memory + ", diskSpace=" + diskSpace;
+                + memory + ", diskSpace=" + diskSpace + ", custom=" + counters;
     }
 
     public Map<String, String> asStringMap() {
@@ -80,6 +217,9 @@ public final class Resources implements Serializable {
         result.put("cores", Integer.toString(cores));
         result.put("memory", Integer.toString(memory));
         result.put("disk.space", Integer.toString(diskSpace));
+        for (Map.Entry<String, Integer> entry : counters.entrySet()) {
+            result.put("custom." + entry.getKey(), entry.getValue().toString());
+        }
 
         return result;
 
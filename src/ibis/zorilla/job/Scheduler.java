@@ -0,0 +1,335 @@
+package ibis.zorilla.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides which job gets the free resources of this machine. Jobs asking for
+ * a worker are queued, ordered by priority, then by fair share (users with
+ * fewer workers running go first), then by how long they have been waiting.
+ * A job only gets a worker if the workers wanted by all jobs before it in the
+ * queue fit as well.
+ *
+ * A non-malleable job whose workers do not all fit blocks the queue from the
+ * time enough running workers are expected to be done. Jobs after it may
+ * still use the free resources now (backfill), if their maximum run time ends
+ * before that.
+ *
+ * Not thread safe, used while holding the lock of the job service.
+ */
+final class Scheduler {
+
+    // jobs do not ask again for a while if they are denied, a request is
+    // withdrawn if it is not repeated within this time
+    public static final long REQUEST_TIMEOUT = 2 * Copy.JOB_WAIT_TIMEOUT;
+
+    /**
+     * Resources held by a running (or reserved) worker until the given time.
+     */
+    static final class Release implements Comparable<Release> {
+        private final long time;
+
+        private final int node;
+
+        private final Resources resources;
+
+        Release(long time, int node, Resources resources) {
+            this.time = time;
+            this.node = node;
+            this.resources = resources;
+        }
+
+        public int compareTo(Release other) {
+            if (time < other.time) {
+                return -1;
+            } else if (time > other.time) {
+                return 1;
+            }
+            return 0;
+        }
+    }
+
+    static final class Request {
+        private final UUID jobID;
+
+        // resources needed per worker
+        private final Resources resources;
+
+        private final int priority;
+
+        private final String user;
+
+        // maximum run time of a worker (ms)
+        private final long walltime;
+
+        private final boolean malleable;
+
+        // number of nodes the job still wants
+        private int wanted;
+
+        private long firstRequest;
+
+        private long lastRequest;
+
+        Request(ZorillaJob job, Resources resources, int wanted) {
+            JobAttributes attributes = job.getAttributes();
+
+            jobID = job.getID();
+            this.resources = resources;
+            priority = attributes.getIntProperty(JobAttributes.PRIORITY, 0);
+
+            String user = attributes.getProperty(JobAttributes.USER);
+            if (user == null) {
+                // every anonymous job has its own share
+                user = jobID.toString();
+            }
+            this.user = user;
+
+            walltime = attributes.getIntProperty(JobAttributes.WALLTIME_MAX,
+                    60) * 60 * 1000L;
+            malleable = attributes.getBooleanProperty(JobAttributes.MALLEABLE,
+                    true);
+
+            this.wanted = Math.max(wanted, 1);
+
+            firstRequest = System.currentTimeMillis();
+            lastRequest = firstRequest;
+        }
+
+        Resources getResources() {
+            return resources;
+        }
+
+        String getUser() {
+            return user;
+        }
+
+        long getWalltime() {
+            return walltime;
+        }
+
+        public String toString() {
+            return jobID.toString().substring(0, 8) + " (priority " + priority
+                    + ", user " + user + ", wants " + wanted + ")";
+        }
+    }
+
+    private final Map<UUID, Request> requests = new HashMap<UUID, Request>();
+
+    /**
+     * Returns the node the given resources fit best on, leaving the fewest
+     * cores, then the least memory. -1 if they do not fit on any node.
+     */
+    static int bestFit(Resources[] free, Resources needed) {
+        int result = -1;
+        Resources best = null;
+
+        for (int i = 0; i < free.length; i++) {
+            Resources left = free[i].subtract(needed);
+            if (!left.greaterOrEqualZero()) {
+                continue;
+            }
+            if (best == null || left.getCores() < best.getCores()) {
+                result = i;
+                best = left;
+            } else if (left.getCores() == best.getCores()
+                    && left.getMemory() < best.getMemory()) {
+                result = i;
+                best = left;
+            }
+        }
+        return result;
+    }
+
+    // number of workers with the given resources which fit
+    private static int fits(Resources[] free, Resources needed) {
+        int result = 0;
+        for (Resources resources : free) {
+            result += resources.fits(needed);
+        }
+        return result;
+    }
+
+    // takes resources for (at most) the given number of workers
+    private static void take(Resources[] free, Resources needed, int workers) {
+        for (int i = 0; i < workers; i++) {
+            int node = bestFit(free, needed);
+            if (node == -1) {
+                return;
+            }
+            free[node] = free[node].subtract(needed);
+        }
+    }
+
+    // time at which the given number of workers fit, if running workers end
+    // when expected
+    private static long startTime(Resources[] free, Release[] releases,
+            Resources needed, int workers) {
+        Resources[] future = free.clone();
+
+        for (Release release : releases) {
+            future[release.node] = future[release.node]
+                    .add(release.resources);
+            if (fits(future, needed) >= workers) {
+                return release.time;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // queue of requests, in the order they should be served
+    private List<Request> queue(Request request,
+            final Map<String, Integer> usage) {
+        List<Request> result = new ArrayList<Request>(requests.values());
+        if (!requests.containsKey(request.jobID)) {
+            result.add(request);
+        }
+
+        Collections.sort(result, new Comparator<Request>() {
+            public int compare(Request one, Request other) {
+                if (one.priority != other.priority) {
+                    return other.priority - one.priority;
+                }
+
+                int oneUsage = usage(usage, one.user);
+                int otherUsage = usage(usage, other.user);
+                if (oneUsage != otherUsage) {
+                    return oneUsage - otherUsage;
+                }
+
+                if (one.firstRequest < other.firstRequest) {
+                    return -1;
+                } else if (one.firstRequest > other.firstRequest) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Returns the number of workers of the given request which fit, after
+     * the workers of all requests before it in the queue.
+     *
+     * @param free
+     *            free resources of each node
+     * @param releases
+     *            resources expected to be freed, sorted by time
+     * @param usage
+     *            number of workers running for each user
+     */
+    private int available(Request request, Resources[] free,
+            Release[] releases, Map<String, Integer> usage, long now) {
+        // what is left for us
+        free = free.clone();
+
+        // time at which a blocked job before us in the queue will start
+        long shadow = Long.MAX_VALUE;
+
+        for (Request ahead : queue(request, usage)) {
+            if (ahead.jobID.equals(request.jobID)) {
+                break;
+            }
+
+            if (shadow != Long.MAX_VALUE && now + ahead.walltime > shadow) {
+                // cannot backfill either, does not take any resources
+                continue;
+            }
+
+            int fit = fits(free, ahead.resources);
+            if (ahead.wanted <= fit || ahead.malleable) {
+                take(free, ahead.resources, ahead.wanted);
+                continue;
+            }
+
+            // blocked until enough running workers are done
+            shadow = Math.min(shadow, startTime(free, releases,
+                    ahead.resources, ahead.wanted));
+        }
+
+        if (shadow != Long.MAX_VALUE && now + request.walltime > shadow) {
+            // would delay a blocked job
+            return 0;
+        }
+
+        return fits(free, request.resources);
+    }
+
+    /**
+     * Returns the number of workers of the given request which would be
+     * admitted now. Does not queue the request.
+     */
+    int available(Request request, Resources[] free, Release[] releases,
+            Map<String, Integer> usage) {
+        long now = System.currentTimeMillis();
+
+        purge(now);
+
+        Request existing = requests.get(request.jobID);
+        if (existing != null) {
+            request.firstRequest = existing.firstRequest;
+        }
+
+        return available(request, free, releases, usage, now);
+    }
+
+    /**
+     * Decides if the given request should get a worker now. Requests which
+     * are denied are queued.
+     */
+    boolean admit(Request request, Resources[] free, Release[] releases,
+            Map<String, Integer> usage) {
+        long now = System.currentTimeMillis();
+
+        Request existing = requests.get(request.jobID);
+        if (existing != null) {
+            // keep our place in the queue
+            request.firstRequest = existing.firstRequest;
+        }
+        requests.put(request.jobID, request);
+
+        purge(now);
+
+        if (available(request, free, releases, usage, now) == 0) {
+            return false;
+        }
+
+        request.wanted--;
+        if (request.wanted == 0) {
+            requests.remove(request.jobID);
+        }
+        return true;
+    }
+
+    private static int usage(Map<String, Integer> usage, String user) {
+        Integer result = usage.get(user);
+
+        if (result == null) {
+            return 0;
+        }
+        return result;
+    }
+
+    // removes requests which were not repeated in time
+    private void purge(long now) {
+        Iterator<Request> iterator = requests.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().lastRequest + REQUEST_TIMEOUT < now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    int nrOfRequests() {
+        return requests.size();
+    }
+}
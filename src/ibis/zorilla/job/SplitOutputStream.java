@@ -0,0 +1,363 @@
+package ibis.zorilla.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Standard out (or error) of a job, split into a file for each worker (see
+ * {@link JobAttributes#SPLIT_STDOUT}). Every worker writes to its own stream,
+ * and keeps its own index of its writes, so workers do not contend for a
+ * single lock. Index entries are numbered from a global sequence, which is
+ * used to produce a merged view of the output of all workers, roughly in the
+ * order it arrived.
+ */
+final class SplitOutputStream {
+
+    // writes of a worker within this time (ms) are merged into a single
+    // index entry, so the index of a worker grows by at most one entry per
+    // interval, however chatty the worker is
+    public static final long COALESCE_TIME = 1000;
+
+    private static final Logger logger = Logger
+            .getLogger(SplitOutputStream.class);
+
+    /**
+     * Index of the writes of a single stream. Only appended to, by the
+     * (single) writer of the stream, while holding the lock of the stream.
+     * Entries are published by replacing the volatile (immutable) entries
+     * holder, so readers need no lock and always see arrays and a count of
+     * the same generation. Writes to a stream are contiguous, so an entry ends where the
+     * next one starts, and the last entry ends at the current end of the
+     * stream.
+     */
+    private static final class StreamIndex {
+
+        // sequence number and start offset of the first count entries. The
+        // arrays are shared between generations, but slots below count are
+        // never written again.
+        private static final class Entries {
+            final long[] sequenceNrs;
+
+            final long[] starts;
+
+            final int count;
+
+            Entries(long[] sequenceNrs, long[] starts, int count) {
+                this.sequenceNrs = sequenceNrs;
+                this.starts = starts;
+                this.count = count;
+            }
+        }
+
+        private final PrimaryOutputStream stream;
+
+        private volatile Entries entries = new Entries(new long[16],
+                new long[16], 0);
+
+        // number of bytes written to the stream
+        private volatile long end = 0;
+
+        // writer only: time the last entry was started
+        private long lastEntryTime = 0;
+
+        StreamIndex(PrimaryOutputStream stream) {
+            this.stream = stream;
+        }
+
+        void written(AtomicLong sequence, long offset, int length) {
+            long now = System.currentTimeMillis();
+            Entries entries = this.entries;
+            int count = entries.count;
+            long[] sequenceNrs = entries.sequenceNrs;
+            long[] starts = entries.starts;
+
+            // start a new entry if others wrote since the last one, but not
+            // more often than once per coalesce interval
+            if (count == 0
+                    || (sequence.get() != sequenceNrs[count - 1] && now
+                            - lastEntryTime >= COALESCE_TIME)) {
+                if (count == starts.length) {
+                    sequenceNrs = new long[count * 2];
+                    starts = new long[count * 2];
+                    System.arraycopy(entries.sequenceNrs, 0, sequenceNrs, 0,
+                            count);
+                    System.arraycopy(entries.starts, 0, starts, 0, count);
+                }
+
+                sequenceNrs[count] = sequence.incrementAndGet();
+                starts[count] = offset;
+                lastEntryTime = now;
+
+                end = offset + length;
+                // publish the entry
+                this.entries = new Entries(sequenceNrs, starts, count + 1);
+            } else {
+                end = offset + length;
+            }
+        }
+    }
+
+    private final String sandboxPath;
+
+    private final File dir;
+
+    private final Primary primary;
+
+    private final Map<UUID, PrimaryOutputStream> streams;
+
+    // index of each stream, by stream number. Copied on write
+    private volatile StreamIndex[] indexes = new StreamIndex[0];
+
+    // numbers index entries of all streams
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    // number of readers waiting for data. Writers only take our lock to
+    // wake them up if there are any
+    private volatile int waiting = 0;
+
+    private long signals = 0;
+
+    private volatile boolean done = false;
+
+    SplitOutputStream(String sandboxPath, File dir, Primary primary)
+            throws Exception {
+        this.sandboxPath = sandboxPath;
+        this.dir = dir;
+        this.primary = primary;
+
+        streams = new HashMap<UUID, PrimaryOutputStream>();
+
+        dir.mkdirs();
+
+        if (!dir.isDirectory()) {
+            throw new Exception("could not create directory: " + dir);
+        }
+
+        logger.debug("creating split output " + sandboxPath + " in " + dir);
+    }
+
+    /**
+     * Returns the stream of the given worker, creating it if needed.
+     */
+    synchronized PrimaryOutputStream getStream(UUID worker) throws Exception {
+        PrimaryOutputStream result = streams.get(worker);
+
+        if (result == null) {
+            result = new PrimaryOutputStream(sandboxPath + "/" + worker,
+                    new File(dir, worker.toString()), primary, this,
+                    indexes.length);
+            streams.put(worker, result);
+
+            StreamIndex[] indexes = new StreamIndex[this.indexes.length + 1];
+            System.arraycopy(this.indexes, 0, indexes, 0,
+                    this.indexes.length);
+            indexes[indexes.length - 1] = new StreamIndex(result);
+            this.indexes = indexes;
+        }
+
+        return result;
+    }
+
+    private synchronized PrimaryOutputStream getExistingStream(UUID worker)
+            throws Exception {
+        PrimaryOutputStream result = streams.get(worker);
+
+        if (result == null) {
+            throw new Exception("no output of worker " + worker + " in "
+                    + sandboxPath);
+        }
+        return result;
+    }
+
+    /**
+     * Called by the stream with the given number after data is written to it,
+     * while holding the lock of that stream.
+     */
+    void written(int stream, long offset, int length) {
+        indexes[stream].written(sequence, offset, length);
+
+        if (waiting > 0) {
+            signal();
+        }
+    }
+
+    private synchronized void signal() {
+        signals++;
+        notifyAll();
+    }
+
+    /**
+     * Writes the output of all workers to the given stream, in the order it
+     * was received. Blocks until this output is unexported.
+     */
+    void streamTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[PrimaryOutputStream.BUFFER_SIZE];
+
+        // current entry in the index of each stream, and the number of bytes
+        // of each stream streamed already
+        int[] entries = new int[0];
+        long[] positions = new long[0];
+
+        // channel to the file of each stream, opened when needed
+        Map<Integer, FileChannel> channels = new HashMap<Integer, FileChannel>();
+
+        try {
+            while (true) {
+                // check before looking for data, so we do not miss any
+                boolean finished = done;
+
+                StreamIndex[] indexes = this.indexes;
+                if (indexes.length > entries.length) {
+                    int[] newEntries = new int[indexes.length];
+                    long[] newPositions = new long[indexes.length];
+                    System.arraycopy(entries, 0, newEntries, 0, entries.length);
+                    System.arraycopy(positions, 0, newPositions, 0,
+                            positions.length);
+                    entries = newEntries;
+                    positions = newPositions;
+                }
+
+                // stream with the oldest entry which has data left
+                int stream = -1;
+                long sequenceNr = Long.MAX_VALUE;
+                long end = 0;
+
+                for (int i = 0; i < indexes.length; i++) {
+                    StreamIndex index = indexes[i];
+                    StreamIndex.Entries indexEntries = index.entries;
+                    int count = indexEntries.count;
+                    long[] starts = indexEntries.starts;
+                    long[] sequenceNrs = indexEntries.sequenceNrs;
+                    long indexEnd = index.end;
+
+                    if (count == 0) {
+                        continue;
+                    }
+
+                    int entry = entries[i];
+                    while (entry + 1 < count
+                            && positions[i] >= starts[entry + 1]) {
+                        entry++;
+                    }
+                    entries[i] = entry;
+
+                    long entryEnd = entry + 1 < count ? starts[entry + 1]
+                            : indexEnd;
+
+                    if (positions[i] < entryEnd
+                            && sequenceNrs[entry] < sequenceNr) {
+                        stream = i;
+                        sequenceNr = sequenceNrs[entry];
+                        end = entryEnd;
+                    }
+                }
+
+                if (stream == -1) {
+                    if (finished) {
+                        logger.debug("done streaming " + sandboxPath);
+                        return;
+                    }
+                    waitForData(indexes, positions);
+                    continue;
+                }
+
+                PrimaryOutputStream file = indexes[stream].stream;
+
+                FileChannel in = channels.get(stream);
+                if (in == null) {
+                    in = new FileInputStream(file.getFile()).getChannel();
+                    channels.put(stream, in);
+                }
+
+                int read = file.getData(positions[stream], buffer, (int) Math
+                        .min(buffer.length, end - positions[stream]), in);
+
+                if (read == -1) {
+                    throw new IOException("output of " + file + " truncated");
+                }
+
+                out.write(buffer, 0, read);
+                out.flush();
+
+                positions[stream] += read;
+            }
+        } finally {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    // waits until data beyond the given positions is written, a stream is
+    // added, or this output is unexported
+    private void waitForData(StreamIndex[] indexes, long[] positions) {
+        long seen;
+
+        synchronized (this) {
+            waiting++;
+            seen = signals;
+        }
+
+        try {
+            // data may have been written before writers saw us waiting
+            if (this.indexes.length != indexes.length) {
+                return;
+            }
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i].end > positions[i]) {
+                    return;
+                }
+            }
+
+            synchronized (this) {
+                while (signals == seen && !done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // IGNORE
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                waiting--;
+            }
+        }
+    }
+
+    /**
+     * Writes the output of the given worker to the given stream. Blocks until
+     * this output is unexported.
+     */
+    void streamTo(UUID worker, OutputStream out) throws Exception {
+        getExistingStream(worker).streamTo(out);
+    }
+
+    // the _real_ close
+    void unexport() throws Exception {
+        // unexport outside our lock, streams call us while holding theirs
+        for (StreamIndex index : indexes) {
+            index.stream.unexport();
+        }
+
+        synchronized (this) {
+            done = true;
+            signals++;
+            notifyAll();
+        }
+    }
+
+    public String toString() {
+        return "sandbox path = " + sandboxPath + ", dir = " + dir;
+    }
+
+}
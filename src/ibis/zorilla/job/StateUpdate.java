@@ -0,0 +1,186 @@
+package ibis.zorilla.job;
+
+import ibis.ipl.ReceivePortIdentifier;
+import ibis.zorilla.JobPhase;
+import ibis.zorilla.io.ObjectInput;
+import ibis.zorilla.io.ObjectOutput;
+import ibis.zorilla.job.net.EndPoint;
+import ibis.zorilla.job.net.WriteMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * (Part of) the distributed state of a job, as sent from the primary to the
+ * copies. Either a snapshot of the complete state, or a delta with only the
+ * changes since a given base version.
+ *
+ * Updates pushed by the primary are disseminated along a tree: an update is
+ * sent to a few nodes, each of which forwards it to a part of the remaining
+ * nodes.
+ */
+final class StateUpdate {
+
+    private static final Logger logger = Logger.getLogger(StateUpdate.class);
+
+    long version;
+
+    boolean snapshot;
+
+    // version a delta is relative to
+    long base;
+
+    // null if not changed
+    JobAttributes attributes;
+
+    // all constituents in a snapshot, changed constituents in a delta
+    Map<UUID, Constituent> constituents;
+
+    UUID[] removed;
+
+    Map<String, String> status;
+
+    JobPhase phase;
+
+    boolean moreWorkersNeeded;
+
+    // time left until the deadline of the job
+    long remaining;
+
+    void writeTo(ObjectOutput out) throws IOException {
+        out.writeLong(version);
+        out.writeBoolean(snapshot);
+
+        if (snapshot) {
+            out.writeObject(attributes);
+            out.writeObject(constituents);
+        } else {
+            out.writeLong(base);
+            out.writeBoolean(attributes != null);
+            if (attributes != null) {
+                out.writeObject(attributes);
+            }
+            out.writeInt(constituents.size());
+            for (Constituent constituent : constituents.values()) {
+                out.writeObject(constituent);
+            }
+            out.writeInt(removed.length);
+            for (UUID constituentID : removed) {
+                out.writeObject(constituentID);
+            }
+        }
+
+        out.writeObject(status);
+        out.writeObject(phase);
+        out.writeBoolean(moreWorkersNeeded);
+        out.writeLong(remaining);
+    }
+
+    @SuppressWarnings("unchecked")
+    static StateUpdate readFrom(ObjectInput in) throws IOException,
+            ClassNotFoundException {
+        StateUpdate result = new StateUpdate();
+
+        result.version = in.readLong();
+        result.snapshot = in.readBoolean();
+
+        if (result.snapshot) {
+            result.attributes = (JobAttributes) in.readObject();
+            result.constituents = (Map<UUID, Constituent>) in.readObject();
+            result.removed = new UUID[0];
+        } else {
+            result.base = in.readLong();
+            if (in.readBoolean()) {
+                result.attributes = (JobAttributes) in.readObject();
+            }
+            int nrOfChanged = in.readInt();
+            result.constituents = new HashMap<UUID, Constituent>();
+            for (int i = 0; i < nrOfChanged; i++) {
+                Constituent constituent = (Constituent) in.readObject();
+                result.constituents.put(constituent.getID(), constituent);
+            }
+            result.removed = new UUID[in.readInt()];
+            for (int i = 0; i < result.removed.length; i++) {
+                result.removed[i] = (UUID) in.readObject();
+            }
+        }
+
+        result.status = (Map<String, String>) in.readObject();
+        result.phase = (JobPhase) in.readObject();
+        result.moreWorkersNeeded = in.readBoolean();
+        result.remaining = in.readLong();
+
+        return result;
+    }
+
+    /**
+     * Splits the given nodes into (at most) fanout consecutive groups of
+     * (almost) equal size. Each node is a group on its own if fanout is 0 or
+     * less.
+     */
+    static <T> List<T[]> split(T[] nodes, int fanout) {
+        List<T[]> result = new ArrayList<T[]>();
+
+        if (fanout <= 0 || fanout > nodes.length) {
+            fanout = nodes.length;
+        }
+
+        int start = 0;
+        for (int i = 0; i < fanout; i++) {
+            int end = start + (nodes.length - start) / (fanout - i);
+            result.add(Arrays.copyOfRange(nodes, start, end));
+            start = end;
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends this update to the first reachable node in the given group, which
+     * will forward it to the rest of the group.
+     *
+     * @return the index of the node the update was sent to, or -1 if none of
+     *         the nodes could be reached
+     */
+    int send(EndPoint endPoint, ReceivePortIdentifier[] group, int fanout) {
+        for (int i = 0; i < group.length; i++) {
+            try {
+                WriteMessage m = endPoint.send(group[i]);
+                m.writeInt(Copy.STATE_UPDATE);
+                writeTo(m);
+                m.writeInt(fanout);
+                m.writeObject(Arrays.copyOfRange(group, i + 1, group.length));
+                m.finish();
+
+                return i;
+            } catch (IOException e) {
+                logger.warn("could not send state update to " + group[i], e);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Forwards this update to the given nodes, by sending it to fanout of them
+     * which in turn forward it to the others.
+     */
+    void forward(EndPoint endPoint, ReceivePortIdentifier[] nodes, int fanout) {
+        for (ReceivePortIdentifier[] group : split(nodes, fanout)) {
+            send(endPoint, group, fanout);
+        }
+    }
+
+    public String toString() {
+        if (snapshot) {
+            return "snapshot " + version;
+        }
+        return "delta " + base + " -> " + version;
+    }
+}
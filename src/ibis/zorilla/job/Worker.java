@@ -59,6 +59,8 @@ public final class Worker implements Runnable {
 
     private int exitStatus;
 
+    private boolean started = false;
+
     /**
      * creates a new child for a given ZorillaJobDescription.
      * 
@@ -84,7 +86,25 @@ public final class Worker implements Runnable {
         }
     }
 
+    /**
+     * Starts this worker, if the resources reserved for it are still held.
+     */
     public void start() {
+        if (!node.jobService().commitWorker(this)) {
+            logger.warn("reservation of worker " + this
+                    + " expired, not starting");
+            abort();
+            return;
+        }
+
+        synchronized (this) {
+            if (finished()) {
+                // aborted before it was started
+                return;
+            }
+            started = true;
+        }
+
         ThreadPool.createNew(this, "worker " + id);
     }
 
@@ -92,6 +112,10 @@ public final class Worker implements Runnable {
         return id;
     }
 
+    ZorillaJob getJob() {
+        return job;
+    }
+
     private ProcessBuilder nativeCommand(File workingDir) throws Exception {
         ProcessBuilder result = new ProcessBuilder();
         
@@ -273,10 +297,21 @@ public final class Worker implements Runnable {
         return status.ordinal() >= Status.USER_ERROR.ordinal();
     }
 
-    private synchronized void setStatus(Status status) {
-        logger.debug("worker status now: " + status);
-        this.status = status;
-        notifyAll();
+    private void setStatus(Status status) {
+        boolean finished;
+
+        synchronized (this) {
+            logger.debug("worker status now: " + status);
+            this.status = status;
+            notifyAll();
+
+            finished = finished();
+        }
+
+        if (finished) {
+            // tell the job right away (not holding our lock)
+            job.workerFinished(this);
+        }
     }
 
     private synchronized void setExitStatus(int exitStatus) {
@@ -310,8 +345,8 @@ public final class Worker implements Runnable {
 
         InputFile[] preStageFiles = job.getPreStageFiles();
         for (int i = 0; i < preStageFiles.length; i++) {
-            logger.debug("copying " + preStageFiles[i] + " to scratch dir");
-            preStageFiles[i].copyTo(scratchDir);
+            logger.debug("linking " + preStageFiles[i] + " to scratch dir");
+            preStageFiles[i].linkTo(scratchDir);
         }
 
         return scratchDir;
@@ -423,9 +458,9 @@ public final class Worker implements Runnable {
             }
 
             outWriter = new StreamWriter(process.getInputStream(), job
-                    .getStdout());
+                    .getStdout(id()));
             errWriter = new StreamWriter(process.getErrorStream(), job
-                    .getStderr());
+                    .getStderr(id()));
 
             // TODO reimplement stdin
             // FileReader fileReader = new FileReader(job.getStdin(), process
@@ -535,8 +570,21 @@ public final class Worker implements Runnable {
         return id.toString().substring(0, 8);
     }
 
+	/**
+	 * Stops this worker. A worker that was never started finishes right away,
+	 * releasing the resources reserved for it.
+	 */
 	public void abort() {
-		signal(0);
+		synchronized (this) {
+			if (started) {
+				signal(0);
+				return;
+			}
+			if (finished()) {
+				return;
+			}
+		}
+		setStatus(Status.KILLED);
 	}
 
 }
@@ -3,6 +3,7 @@ package ibis.zorilla.job;
 import ibis.ipl.IbisIdentifier;
 import ibis.zorilla.JobDescription;
 import ibis.zorilla.JobPhase;
+import ibis.zorilla.Node;
 import ibis.zorilla.api.JobInterface;
 import ibis.zorilla.io.ZorillaPrintStream;
 import ibis.zorilla.job.net.EndPoint;
@@ -62,10 +63,10 @@ public abstract class ZorillaJob implements JobInterface {
 	protected abstract String[] getPostStageFiles() throws Exception;
 
 	/**
-	 * Returns a stream suitable to write standard out to. Do not close stream
-	 * when done writing. May return null.
+	 * Returns a stream suitable for the given worker to write standard out to.
+	 * Do not close stream when done writing. May return null.
 	 */
-	protected abstract OutputStream getStdout() throws Exception;
+	protected abstract OutputStream getStdout(UUID worker) throws Exception;
 
 	/**
 	 * Write standard out to the given output stream. Blocks until this job has
@@ -73,12 +74,26 @@ public abstract class ZorillaJob implements JobInterface {
 	 */
 	public abstract void readStdout(OutputStream out) throws Exception;
 
+	/**
+	 * Write standard out of a single worker to the given output stream. Only
+	 * possible if standard out is split. Blocks until this job has finished
+	 */
+	public abstract void readStdout(UUID worker, OutputStream out)
+			throws Exception;
+
 	/**
 	 * Write standard err to the given output stream. Blocks until this job has
 	 * finished.
 	 */
 	public abstract void readStderr(OutputStream out) throws Exception;
 
+	/**
+	 * Write standard err of a single worker to the given output stream. Only
+	 * possible if standard err is split. Blocks until this job has finished.
+	 */
+	public abstract void readStderr(UUID worker, OutputStream out)
+			throws Exception;
+
 	/**
 	 * Write the given file to the given output stream. Blocks until this job
 	 * has finished
@@ -98,10 +113,10 @@ public abstract class ZorillaJob implements JobInterface {
 	protected abstract InputFile getStdin() throws Exception;
 
 	/**
-	 * Returns a stream suitable to write standard error to Do not close stream
-	 * when done writing. May return null.
+	 * Returns a stream suitable for the given worker to write standard error
+	 * to. Do not close stream when done writing. May return null.
 	 */
-	protected abstract OutputStream getStderr() throws Exception;
+	protected abstract OutputStream getStderr(UUID worker) throws Exception;
 
 	/**
 	 * Creates an output stream to write to the given virtual file
@@ -171,6 +186,15 @@ public abstract class ZorillaJob implements JobInterface {
 
 	abstract IbisIdentifier getRandomConstituent();
 
+	abstract Node getNode();
+
+	/**
+	 * Called by a local worker of this job when it has finished.
+	 */
+	void workerFinished(Worker worker) {
+		// NOTHING
+	}
+
 	public abstract JobAttributes getAttributes();
 
 	public abstract Constituent[] getConstituents();
@@ -0,0 +1,119 @@
+package ibis.zorilla.net;
+
+/**
+ * Handle to the (future) reply of a call done with
+ * {@link Network#callAsync(Message, NodeInfo, int)}. Any number of calls can be
+ * outstanding on a single connection, replies are matched to calls using a
+ * call ID.
+ */
+public final class CallFuture {
+
+    private final Connection connection;
+
+    private final int callID;
+
+    private Message reply = null;
+
+    // error message if the call failed
+    private String error = null;
+
+    private boolean done = false;
+
+    CallFuture(Connection connection, int callID) {
+        this.connection = connection;
+        this.callID = callID;
+    }
+
+    int getCallID() {
+        return callID;
+    }
+
+    synchronized void replyReceived(Message reply) {
+        if (done) {
+            reply.release();
+            return;
+        }
+        this.reply = reply;
+        done = true;
+        notifyAll();
+    }
+
+    synchronized void failed(String error) {
+        if (done) {
+            return;
+        }
+        this.error = error;
+        done = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the reply, for at most the default call timeout.
+     */
+    public Message get() throws NetworkException {
+        return get(Network.CALL_TIMEOUT);
+    }
+
+    /**
+     * Waits for the reply of this call for at most the given time (in
+     * milliseconds). The reply should be released by the caller.
+     *
+     * @throws NetworkException
+     *             if the call failed, or no reply was received in time
+     */
+    public Message get(long timeout) throws NetworkException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (this) {
+            while (!done) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+
+            if (done) {
+                if (error != null) {
+                    throw new NetworkException(error);
+                }
+                Message result = reply;
+                reply = null;
+                return result;
+            }
+        }
+
+        cancel();
+        throw new NetworkException("timeout on call to " + connection);
+    }
+
+    /**
+     * Cancels this call. A reply received afterwards is discarded.
+     */
+    public void cancel() {
+        connection.removeCall(callID);
+
+        synchronized (this) {
+            if (reply != null) {
+                reply.release();
+                reply = null;
+            }
+            if (!done) {
+                error = "call cancelled";
+                done = true;
+            }
+            notifyAll();
+        }
+    }
+
+}
@@ -1,19 +1,606 @@
 package ibis.zorilla.net;
 
+import ibis.zorilla.util.SizeOf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A (persistent) connection to another node. All messages to and from this
+ * node, for any module, are multiplexed over this connection. All actual I/O is
+ * done by the selector thread of the {@link Network}.
+ */
 public class Connection {
-    
-    Connection(SmartSocketsAddress destination) {
-        
+
+    // frame types
+    static final byte FRAME_HELLO = 0;
+
+    static final byte FRAME_MESSAGE = 1;
+
+    static final byte FRAME_REQUEST = 2;
+
+    static final byte FRAME_REPLY = 3;
+
+    static final byte FRAME_ERROR = 4;
+
+    // health probe, and its answer. These frames have no content
+    static final byte FRAME_PING = 5;
+
+    static final byte FRAME_PONG = 6;
+
+    // byte order of the content of a message
+    static final byte BIG_ENDIAN = 0;
+
+    static final byte LITTLE_ENDIAN = 1;
+
+    // type, message type, byte order, module ID, hop count, max distance,
+    // call ID
+    static final int FRAME_HEADER_SIZE = SizeOf.BYTE + SizeOf.BYTE
+            + SizeOf.BYTE + SizeOf.INT + SizeOf.INT + SizeOf.INT + SizeOf.INT;
+
+    // maximum size of a single frame, excluding the length prefix
+    static final int MAX_FRAME_SIZE = Message.DEFAULT_SIZE + (16 * 1024);
+
+    private static final Logger logger = Logger.getLogger(Connection.class);
+
+    private final Network network;
+
+    private final SocketChannel channel;
+
+    private final SmartSocketsAddress address;
+
+    // frames waiting to be written by the selector thread
+    private final LinkedList<ByteBuffer> sendQueue;
+
+    // buffer for the length prefix of the frame currently being read
+    private final ByteBuffer lengthBuffer;
+
+    // frame currently being read, null if none
+    private ByteBuffer frameBuffer;
+
+    private SelectionKey key;
+
+    // info of the peer, null until the peer has said hello
+    private NodeInfo remoteInfo;
+
+    // last time a message was sent or received on this connection
+    private long lastUsed;
+
+    // last time anything (including a probe answer) was received
+    private long lastReceived;
+
+    private long lastProbe = 0;
+
+    private boolean closed = false;
+
+    // outstanding calls, by call ID
+    private final Map<Integer, CallFuture> calls;
+
+    private int nextCallID = 0;
+
+    Connection(Network network, SocketChannel channel,
+            SmartSocketsAddress address) {
+        this.network = network;
+        this.channel = channel;
+        this.address = address;
+
+        sendQueue = new LinkedList<ByteBuffer>();
+        calls = new HashMap<Integer, CallFuture>();
+        lengthBuffer = ByteBuffer.allocate(SizeOf.INT);
+        frameBuffer = null;
+
+        lastUsed = System.currentTimeMillis();
+        lastReceived = lastUsed;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
     }
-    
-    void send(Message message) {
-        
+
+    synchronized void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    synchronized SelectionKey getKey() {
+        return key;
+    }
+
+    SmartSocketsAddress getAddress() {
+        return address;
+    }
+
+    public synchronized NodeInfo getRemoteInfo() {
+        return remoteInfo;
+    }
+
+    synchronized void setRemoteInfo(NodeInfo info) {
+        remoteInfo = NodeInfo.newest(remoteInfo, info);
+        notifyAll();
+    }
+
+    public synchronized long getLastUsed() {
+        return lastUsed;
+    }
+
+    public synchronized long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * Returns true if this connection is in use: a call is outstanding, or
+     * data is waiting to be written.
+     */
+    synchronized boolean isBusy() {
+        return !calls.isEmpty() || !sendQueue.isEmpty();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
     }
 
+    /**
+     * Estimated round trip time to the peer, based on the Vivaldi coordinates
+     * of both nodes. Returns negative infinity if the peer is not known yet.
+     */
     public double distanceMs() {
-        // TODO Auto-generated method stub
-        return 0;
+        NodeInfo remote = getRemoteInfo();
+
+        if (remote == null) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        if (isClosed()) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return network.getNodeInfo().getCoordinates().distance(
+                remote.getCoordinates());
+    }
+
+    /**
+     * Waits until the peer has identified itself.
+     */
+    synchronized NodeInfo waitForRemoteInfo(long timeout)
+            throws NetworkException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (remoteInfo == null) {
+            if (closed) {
+                throw new NetworkException("connection to " + address
+                        + " closed");
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new NetworkException("timeout waiting for hello from "
+                        + address);
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
+        }
+        return remoteInfo;
+    }
+
+    // *** SENDING ***\\
+
+    void sendHello(NodeInfo self) throws NetworkException {
+        ByteBuffer frame = MessagePool.acquire(SizeOf.INT + SizeOf.BYTE
+                + SizeOf.BOOLEAN + self.maxEncodedSize());
+        frame.putInt(0); // length, filled in below
+        frame.put(FRAME_HELLO);
+        writeNodeInfo(frame, self);
+        frame.putInt(0, frame.position() - SizeOf.INT);
+        frame.flip();
+
+        enqueue(frame, false);
+    }
+
+    /**
+     * Sends a probe to the peer, which is answered without involving any
+     * module.
+     */
+    void probe() throws NetworkException {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastProbe < ConnectionSet.PROBE_INTERVAL) {
+                // still waiting for an answer
+                return;
+            }
+            lastProbe = now;
+        }
+        enqueue(controlFrame(FRAME_PING), false);
+    }
+
+    private static ByteBuffer controlFrame(byte frameType) {
+        ByteBuffer frame = MessagePool.acquire(SizeOf.INT + SizeOf.BYTE);
+        frame.putInt(SizeOf.BYTE);
+        frame.put(frameType);
+        frame.flip();
+        return frame;
+    }
+
+    void send(Message message) throws NetworkException {
+        enqueue(encode(FRAME_MESSAGE, message), true);
+    }
+
+    void sendReply(Message reply) throws NetworkException {
+        enqueue(encode(FRAME_REPLY, reply), true);
+    }
+
+    void sendError(int callID, String error) throws NetworkException {
+        byte[] bytes;
+        try {
+            bytes = error.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new NetworkException("could not encode error", e);
+        }
+        Message message = new Message(bytes.length);
+        message.setCallID(callID);
+        try {
+            message.getContent().put(bytes, 0,
+                    Math.min(bytes.length, message.capacity()));
+
+            enqueue(encode(FRAME_ERROR, message), true);
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Sends a request. The reply is delivered to the returned future. Any
+     * number of calls can be outstanding at the same time.
+     */
+    CallFuture call(Message request) throws NetworkException {
+        CallFuture result;
+        synchronized (this) {
+            result = new CallFuture(this, nextCallID++);
+            calls.put(result.getCallID(), result);
+        }
+        request.setCallID(result.getCallID());
+
+        try {
+            enqueue(encode(FRAME_REQUEST, request), true);
+        } catch (NetworkException e) {
+            removeCall(result.getCallID());
+            throw e;
+        }
+
+        return result;
+    }
+
+    synchronized CallFuture removeCall(int callID) {
+        return calls.remove(callID);
+    }
+
+    void replyReceived(Message reply) {
+        CallFuture call = removeCall(reply.getCallID());
+
+        if (call == null) {
+            logger.warn("received reply from " + this + " for unknown call "
+                    + reply.getCallID());
+            reply.release();
+            return;
+        }
+        call.replyReceived(reply);
+    }
+
+    void errorReceived(Message error) {
+        CallFuture call = removeCall(error.getCallID());
+
+        byte[] bytes = new byte[error.remaining()];
+        error.getContent().get(bytes);
+        error.release();
+
+        if (call == null) {
+            logger.warn("received error from " + this + " for unknown call "
+                    + error.getCallID());
+            return;
+        }
+
+        String message;
+        try {
+            message = new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            message = "unknown error";
+        }
+        call.failed("remote exception: " + message);
+    }
+
+    // as using the connection (hello, probes)
+    private void enqueue(ByteBuffer frame, boolean use)
+            throws NetworkException {
+        synchronized (this) {
+            if (closed) {
+                MessagePool.release(frame);
+                throw new NetworkException("connection to " + address
+                        + " closed");
+            }
+            sendQueue.addLast(frame);
+            if (use) {
+                lastUsed = System.currentTimeMillis();
+            }
+        }
+        network.wantWrite(this);
+    }
+
+    private static ByteBuffer encode(byte frameType, Message message)
+            throws NetworkException {
+        ByteBuffer content = message.contentToSend();
+
+        int maxLength = FRAME_HEADER_SIZE + maxEncodedSize(message.getSource())
+                + maxEncodedSize(message.getDestination())
+                + content.remaining();
+
+        ByteBuffer frame = MessagePool.acquire(SizeOf.INT + maxLength);
+        frame.putInt(0); // length, filled in below
+        frame.put(frameType);
+        frame.put((byte) message.getType().ordinal());
+        if (message.order() == ByteOrder.LITTLE_ENDIAN) {
+            frame.put(LITTLE_ENDIAN);
+        } else {
+            frame.put(BIG_ENDIAN);
+        }
+        frame.putInt(message.getModuleID());
+        frame.putInt(message.getHopCount());
+        frame.putInt(message.getMaxDistance());
+        frame.putInt(message.getCallID());
+        writeNodeInfo(frame, message.getSource());
+        writeNodeInfo(frame, message.getDestination());
+        frame.put(content);
+
+        int length = frame.position() - SizeOf.INT;
+        if (length > MAX_FRAME_SIZE) {
+            MessagePool.release(frame);
+            throw new NetworkException("message too big: " + length);
+        }
+        frame.putInt(0, length);
+        frame.flip();
+
+        return frame;
+    }
+
+    private static int maxEncodedSize(NodeInfo info) {
+        if (info == null) {
+            return SizeOf.BOOLEAN;
+        }
+        return SizeOf.BOOLEAN + info.maxEncodedSize();
+    }
+
+    // writes a (possibly null) node info to a frame
+    private static void writeNodeInfo(ByteBuffer frame, NodeInfo info)
+            throws NetworkException {
+        // use a message as a view of the frame to get at the codec
+        Message view = new Message(frame, null);
+        try {
+            view.writeBoolean(info != null);
+            if (info != null) {
+                info.writeTo(view);
+            }
+        } catch (IOException e) {
+            MessagePool.release(frame);
+            throw new NetworkException("could not encode node info", e);
+        }
+    }
+
+    private static NodeInfo readNodeInfo(ByteBuffer frame) throws IOException {
+        Message view = new Message(frame, null);
+
+        if (!view.readBoolean()) {
+            return null;
+        }
+        return NodeInfo.readFrom(view);
+    }
+
+    // *** SELECTOR THREAD ***\\
+
+    /**
+     * Writes as much of the send queue as possible. Returns true if the queue
+     * is now empty.
+     */
+    synchronized boolean handleWrite() throws IOException {
+        while (!sendQueue.isEmpty()) {
+            ByteBuffer frame = sendQueue.getFirst();
+
+            channel.write(frame);
+
+            if (frame.hasRemaining()) {
+                // socket buffer full
+                return false;
+            }
+            sendQueue.removeFirst();
+            MessagePool.release(frame);
+        }
+        return true;
+    }
+
+    synchronized boolean hasPendingWrites() {
+        return !sendQueue.isEmpty();
+    }
+
+    /**
+     * Reads all available frames from the channel, and hands them to the
+     * network.
+     */
+    void handleRead() throws IOException {
+        while (true) {
+            if (frameBuffer == null) {
+                if (channel.read(lengthBuffer) == -1) {
+                    throw new IOException("connection closed by peer");
+                }
+                if (lengthBuffer.hasRemaining()) {
+                    return;
+                }
+                lengthBuffer.flip();
+                int length = lengthBuffer.getInt();
+                lengthBuffer.clear();
+
+                if (length <= 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame length: " + length);
+                }
+                frameBuffer = MessagePool.acquire(length);
+                frameBuffer.limit(length);
+            }
+
+            if (channel.read(frameBuffer) == -1) {
+                throw new IOException("connection closed by peer");
+            }
+            if (frameBuffer.hasRemaining()) {
+                return;
+            }
+            frameBuffer.flip();
+            ByteBuffer frame = frameBuffer;
+            frameBuffer = null;
+
+            synchronized (this) {
+                lastReceived = System.currentTimeMillis();
+            }
+
+            handleFrame(frame);
+        }
+    }
+
+    private void handleFrame(ByteBuffer frame) throws IOException {
+        byte frameType = frame.get();
+
+        if (frameType == FRAME_HELLO) {
+            NodeInfo info;
+            try {
+                info = readNodeInfo(frame);
+            } finally {
+                MessagePool.release(frame);
+            }
+            setRemoteInfo(info);
+            network.helloReceived(this, info);
+            return;
+        }
+
+        if (frameType == FRAME_PING) {
+            MessagePool.release(frame);
+            try {
+                enqueue(controlFrame(FRAME_PONG), false);
+            } catch (NetworkException e) {
+                throw new IOException("could not answer probe: " + e);
+            }
+            return;
+        }
+
+        if (frameType == FRAME_PONG) {
+            // only used to update the time we last heard from the peer
+            MessagePool.release(frame);
+            return;
+        }
+
+        synchronized (this) {
+            lastUsed = lastReceived;
+        }
+
+        Message message;
+        try {
+            message = decode(frame);
+        } catch (IOException e) {
+            MessagePool.release(frame);
+            throw e;
+        }
+
+        switch (frameType) {
+        case FRAME_MESSAGE:
+            network.messageReceived(this, message);
+            break;
+        case FRAME_REQUEST:
+            network.requestReceived(this, message);
+            break;
+        case FRAME_REPLY:
+            replyReceived(message);
+            break;
+        case FRAME_ERROR:
+            errorReceived(message);
+            break;
+        default:
+            message.release();
+            throw new IOException("unknown frame type: " + frameType);
+        }
+    }
+
+    private static Message decode(ByteBuffer frame) throws IOException {
+        Message.MessageType[] types = Message.MessageType.values();
+
+        int typeOrdinal = frame.get();
+        if (typeOrdinal < 0 || typeOrdinal >= types.length) {
+            throw new IOException("unknown message type: " + typeOrdinal);
+        }
+        byte order = frame.get();
+        int moduleID = frame.getInt();
+        int hopCount = frame.getInt();
+        int maxDistance = frame.getInt();
+        int callID = frame.getInt();
+        NodeInfo source = readNodeInfo(frame);
+        NodeInfo destination = readNodeInfo(frame);
+
+        // remainder of the frame is the content
+        Message result = new Message(frame.slice(), frame);
+        result.setReceived();
+        result.setType(types[typeOrdinal]);
+        // content is read in the byte order it was written in
+        if (order == LITTLE_ENDIAN) {
+            result.order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            result.order(ByteOrder.BIG_ENDIAN);
+        }
+        result.setModuleID(moduleID);
+        result.setHopCount(hopCount);
+        result.setMaxDistance(maxDistance);
+        result.setCallID(callID);
+        result.setSource(source);
+        result.setDestination(destination);
+
+        return result;
+    }
+
+    void close() {
+        CallFuture[] failed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (ByteBuffer frame : sendQueue) {
+                MessagePool.release(frame);
+            }
+            sendQueue.clear();
+            failed = calls.values().toArray(new CallFuture[0]);
+            calls.clear();
+            notifyAll();
+        }
+
+        for (CallFuture call : failed) {
+            call.failed("connection to " + address + " closed");
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // IGNORE
+        }
+    }
+
+    public String toString() {
+        NodeInfo remote = getRemoteInfo();
+        if (remote == null) {
+            return "connection to " + address;
+        }
+        return "connection to " + remote;
     }
-    
 
 }
@@ -5,23 +5,38 @@ import ibis.zorilla.cluster.Coordinates;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of persistent connections to other nodes, keyed by both address and
+ * node ID. The number of connections is bounded, idle connections are closed,
+ * and connections we have not heard from for a while are probed.
+ */
 public class ConnectionSet {
 
+    // compares connections by a snapshot of their distance, so the order does
+    // not change while sorting
     private static final class LatencyComparator implements
             Comparator<Connection> {
 
+        private final Map<Connection, Double> distances;
+
+        LatencyComparator(Map<Connection, Double> distances) {
+            this.distances = distances;
+        }
+
         public int compare(Connection one, Connection other) {
-            if (one.distanceMs() < other.distanceMs()) {
-                return -1;
-            } else if (one.distanceMs() > other.distanceMs()) {
-                return 1;
-            } else {
-                return 0;
-            }
+            return Double.compare(distances.get(one), distances.get(other));
         }
 
     }
@@ -30,7 +45,12 @@ public class ConnectionSet {
             Collection<Connection> unsorted) {
         Connection[] array = unsorted.toArray(new Connection[0]);
 
-        Arrays.sort(array, new LatencyComparator());
+        Map<Connection, Double> distances = new IdentityHashMap<Connection, Double>();
+        for (Connection connection : array) {
+            distances.put(connection, connection.distanceMs());
+        }
+
+        Arrays.sort(array, new LatencyComparator(distances));
 
         return array;
     }
@@ -62,96 +82,221 @@ public class ConnectionSet {
         Arrays.sort(infos, new NodeLatencyComparator(center));
     }
 
-    private final ArrayList<Connection> connections;
+    // how long a connection may be silent before we probe it (30 seconds)
+    public static final long PROBE_INTERVAL = 30 * 1000;
 
-    ConnectionSet() {
-        connections = new ArrayList<Connection>();
-    }
+    // how long we wait for the answer of a probe (30 seconds)
+    public static final long PROBE_TIMEOUT = 30 * 1000;
 
-    double distanceToClosestConnection() {
-        double result = Double.POSITIVE_INFINITY;
+    private static final Logger logger = Logger.getLogger(ConnectionSet.class);
 
-        for (Connection connection : connections) {
-            double distance = connection.distanceMs();
+    // maximum number of connections kept open
+    private final int maxConnections;
 
-            if (distance < result) {
-                result = distance;
-            }
-        }
-        return result;
+    // connections not used for this long are closed
+    private final long idleTimeout;
+
+    // connections by node ID, only contains connections to identified peers
+    private final Map<UUID, Connection> connections;
+
+    // all connections, by the address they were created with
+    private final Map<SmartSocketsAddress, Connection> addresses;
+
+    // addresses a connection is currently being set up to
+    private final Set<SmartSocketsAddress> connecting;
+
+    ConnectionSet(int maxConnections, long idleTimeout) {
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+
+        connections = new HashMap<UUID, Connection>();
+        addresses = new HashMap<SmartSocketsAddress, Connection>();
+        connecting = new HashSet<SmartSocketsAddress>();
     }
 
     /**
-     * Purges unreachable neighbours. Removes furthest neighbours if there are
-     * to many neighbours. If possible adds a candidate new neighbour.
+     * Returns an open connection to the given address. If there is none, null
+     * is returned, and the caller is expected to set up a connection, and
+     * either add it, or call connectFailed(). Concurrent callers for the same
+     * address wait for this connection instead of creating one themselves.
      */
-    protected synchronized void updateConnectionList() {
-        int nrOfCandidates = 0;
+    synchronized Connection getOrReserve(SmartSocketsAddress address) {
+        while (connecting.contains(address)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
+        }
 
-        Connection[] sorted = sortConnectionsByDistance(connections);
+        Connection result = addresses.get(address);
 
-        if (logger.isDebugEnabled()) {
+        if (result != null && !result.isClosed()) {
+            return result;
+        }
 
-            String message = node + " sorted list of neighbours: ";
+        connecting.add(address);
+        return null;
+    }
 
-            for (Connection neighbour : sorted) {
-                message += neighbour + " ";
-            }
+    synchronized void connectFailed(SmartSocketsAddress address) {
+        connecting.remove(address);
+        notifyAll();
+    }
 
-            logger.debug(message);
+    synchronized void add(Connection connection) {
+        addresses.put(connection.getAddress(), connection);
 
+        NodeInfo info = connection.getRemoteInfo();
+        if (info != null) {
+            connections.put(info.getID(), connection);
         }
 
-        Iterator<Connection> iterator = sorted.iterator();
-        while (iterator.hasNext()) {
-            Connection neighbour = iterator.next();
-            double distance = neighbour.distanceMs();
-            if (distance == Double.POSITIVE_INFINITY) {
-                iterator.remove();
-                neighbours.remove(neighbour.getID());
+        connecting.remove(connection.getAddress());
+        notifyAll();
+    }
 
-            } else if (distance == Double.NEGATIVE_INFINITY) {
-                nrOfCandidates++;
-            }
+    /**
+     * Registers a connection under the ID of the peer, once it is known.
+     * Returns the connection previously known for this node, if any.
+     */
+    synchronized Connection identified(Connection connection, NodeInfo info) {
+        addresses.put(connection.getAddress(), connection);
+        Connection old = connections.put(info.getID(), connection);
+
+        if (old == connection) {
+            return null;
         }
+        return old;
+    }
 
-        while ((sorted.size() - nrOfCandidates) > maxConnections) {
-            Connection removed = sorted.remove(sorted.size() - 1);
-            neighbours.remove(removed.getID());
-            logger.debug("removing " + removed + " from neighbour list");
+    synchronized void remove(Connection connection) {
+        if (addresses.get(connection.getAddress()) == connection) {
+            addresses.remove(connection.getAddress());
         }
 
-        int newCandidates = CANDIDATES - nrOfCandidates;
+        NodeInfo info = connection.getRemoteInfo();
+        if (info != null && connections.get(info.getID()) == connection) {
+            connections.remove(info.getID());
+        }
+    }
 
-        logger.debug("adding " + newCandidates
-                + " new nodes to neighbours list");
+    synchronized Connection get(UUID id) {
+        return connections.get(id);
+    }
 
-        if (newCandidates < 0) {
-            return;
-        }
+    synchronized Connection get(SmartSocketsAddress address) {
+        return addresses.get(address);
+    }
+
+    synchronized Connection[] getConnections() {
+        return getAll().toArray(new Connection[0]);
+    }
+
+    private Set<Connection> getAll() {
+        Set<Connection> result = new HashSet<Connection>();
+        result.addAll(addresses.values());
+        result.addAll(connections.values());
+        return result;
+    }
 
-        NodeInfo[] newCandidateInfos = node.gossipService().getNodesList();
+    /**
+     * Returns all connections to identified peers, closest peer first.
+     */
+    synchronized Connection[] getConnectionsByDistance() {
+        return sortConnectionsByDistance(connections.values());
+    }
 
-        sortNodesByDistance(newCandidateInfos, node.vivaldiService()
-                .getCoordinates());
+    synchronized int size() {
+        return getAll().size();
+    }
+
+    synchronized double distanceToClosestConnection() {
+        double result = Double.POSITIVE_INFINITY;
+
+        for (Connection connection : connections.values()) {
+            double distance = connection.distanceMs();
+
+            if (distance < result) {
+                result = distance;
+            }
+        }
+        return result;
+    }
 
-        int added = 0;
-        for (NodeInfo newInfo : newCandidateInfos) {
-            if (added >= newCandidates) {
-                return;
+    /**
+     * Removes closed, dead and idle connections, as well as the least recently
+     * used connections if there are too many. Returns the connections which
+     * should be closed by the caller.
+     */
+    synchronized List<Connection> selectEvictions() {
+        long now = System.currentTimeMillis();
+        List<Connection> result = new ArrayList<Connection>();
+        List<Connection> candidates = new ArrayList<Connection>();
+
+        for (Connection connection : getAll()) {
+            if (connection.isClosed()) {
+                remove(connection);
+            } else if (now - connection.getLastReceived() > PROBE_INTERVAL
+                    + PROBE_TIMEOUT) {
+                logger.debug(connection + " did not answer probe");
+                result.add(connection);
+            } else if (!connection.isBusy()) {
+                if (now - connection.getLastUsed() > idleTimeout) {
+                    logger.debug(connection + " idle");
+                    result.add(connection);
+                } else {
+                    candidates.add(connection);
+                }
             }
-            if (newInfo != null && !newInfo.sameNodeAs(node.getInfo())
-                    && !neighbours.containsKey(newInfo.getID())) {
-                Connection newConnection = new Connection(node, newInfo);
-                logger.debug("new candidate: " + newInfo);
-                neighbours.put(newConnection.getID(), newConnection);
-                added++;
-                if (newInfo.isHub()) {
-                    node.getIPLServer().addHubs(newInfo.getAddress().machine());
+        }
+
+        int excess = size() - result.size() - maxConnections;
+
+        if (excess > 0) {
+            // least recently used first
+            Collections.sort(candidates, new Comparator<Connection>() {
+                public int compare(Connection one, Connection other) {
+                    long difference = one.getLastUsed() - other.getLastUsed();
+                    if (difference < 0) {
+                        return -1;
+                    } else if (difference > 0) {
+                        return 1;
+                    } else {
+                        return 0;
+                    }
                 }
+            });
+
+            for (int i = 0; i < excess && i < candidates.size(); i++) {
+                logger.debug("too many connections, evicting "
+                        + candidates.get(i));
+                result.add(candidates.get(i));
             }
         }
 
+        for (Connection connection : result) {
+            remove(connection);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns connections we have not heard from in a while, which should be
+     * probed to see if they are still alive.
+     */
+    synchronized List<Connection> selectProbes() {
+        long now = System.currentTimeMillis();
+        List<Connection> result = new ArrayList<Connection>();
+
+        for (Connection connection : getAll()) {
+            if (!connection.isClosed()
+                    && now - connection.getLastReceived() > PROBE_INTERVAL) {
+                result.add(connection);
+            }
+        }
+        return result;
     }
 
 }
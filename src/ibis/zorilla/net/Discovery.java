@@ -4,40 +4,43 @@ import ibis.zorilla.Config;
 import ibis.zorilla.Node;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Keeps connections to the peers given by the user, and keeps track of the
+ * info of these peers.
+ */
 public class Discovery extends Thread {
 
     // how often do we re-do the discovery process to update node info? (5 min)
     public static final int DISCOVERY_INTERVAL = 5 * 60 * 1000;
 
-    private static final Logger logger = Logger
-            .getLogger(Discovery.class);
+    private static final Logger logger = Logger.getLogger(Discovery.class);
 
     private final Set<SmartSocketsAddress> addresses;
 
+    // info of peers, by address
+    private final Map<SmartSocketsAddress, NodeInfo> nodes;
+
     private final Network network;
 
     public Discovery(Node node, Network network) throws IOException {
         this.network = network;
 
         addresses = new HashSet<SmartSocketsAddress>();
+        nodes = new HashMap<SmartSocketsAddress, NodeInfo>();
 
         for (String string : node.config().getStringList(Config.PEERS)) {
             addPeer(string);
         }
-        
-        setName("dicovery module");
+
+        setName("discovery module");
         setDaemon(true);
-        start();
     }
 
     public synchronized void addPeer(String address) {
@@ -47,7 +50,7 @@ public class Discovery extends Thread {
         } catch (Exception e) {
             logger.warn("invalid peer address: " + address, e);
         }
-        
+
         if (smsAddress != null) {
             addresses.add(smsAddress);
 
@@ -56,18 +59,31 @@ public class Discovery extends Thread {
         }
     }
 
-   
-   
+    /**
+     * Returns the info of all peers we were able to reach.
+     */
+    public synchronized NodeInfo[] getNodesList() {
+        return nodes.values().toArray(new NodeInfo[0]);
+    }
+
     public void run() {
         while (true) {
             for (SmartSocketsAddress peer : getAddresses()) {
-                //tries to esablish a connection if one is not already present
-                //we then do exactly nothing with this connection ;-)
-                //will update the NodeInfo as a side-effect
+                // the connection is kept in the connection pool of the
+                // network, so this is only expensive the first time
                 try {
-                    network.getConnection(peer);
+                    Connection connection = network.getConnection(peer);
+                    NodeInfo info = connection
+                            .waitForRemoteInfo(Network.CONNECT_TIMEOUT);
+
+                    synchronized (this) {
+                        nodes.put(peer, info);
+                    }
                 } catch (NetworkException e) {
                     logger.warn("could not get connection to peer", e);
+                    synchronized (this) {
+                        nodes.remove(peer);
+                    }
                 }
             }
 
@@ -81,9 +97,8 @@ public class Discovery extends Thread {
         }
     }
 
-    private synchronized SmartSocketsAddress[]  getAddresses() {
+    private synchronized SmartSocketsAddress[] getAddresses() {
         return addresses.toArray(new SmartSocketsAddress[addresses.size()]);
     }
 
-   
 }
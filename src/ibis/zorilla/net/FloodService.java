@@ -0,0 +1,115 @@
+package ibis.zorilla.net;
+
+import ibis.zorilla.Config;
+import ibis.zorilla.Node;
+import ibis.zorilla.Service;
+import ibis.zorilla.job.Advert;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends job adverts to other nodes by flooding. The "count" of an advert
+ * determines how far it travels: a number of hops for the "neighbours" (or
+ * "hops") metric, an exponentially growing latency radius for the "latency"
+ * metric.
+ */
+public class FloodService implements Service, MessageHandler {
+
+    // radius of an advert with count 1 using the latency metric (ms)
+    public static final int LATENCY_STEP = 10;
+
+    // maximum radius of an advert using the latency metric (ms)
+    public static final int MAX_LATENCY = 10 * 1000;
+
+    private static final Logger logger = Logger.getLogger(FloodService.class);
+
+    private final Node node;
+
+    private final String defaultMetric;
+
+    private long advertsSend = 0;
+
+    private long advertsReceived = 0;
+
+    public FloodService(Node node) {
+        this.node = node;
+
+        defaultMetric = node.config().getProperty(Config.DEFAULT_FLOOD_METRIC);
+
+        node.network().register(this, Network.FLOOD_SERVICE);
+    }
+
+    public void start() {
+        logger.info("Started flood service");
+    }
+
+    /**
+     * Sends an advert to all nodes in the radius given by its metric and
+     * count.
+     */
+    public void advertise(Advert advert) throws Exception {
+        String metric = advert.getMetric();
+        if (metric == null) {
+            metric = defaultMetric;
+        }
+
+        Message message = new Message();
+        message.writeObject(advert);
+
+        if (metric.equalsIgnoreCase("latency")) {
+            int radius = LATENCY_STEP << Math.min(advert.getCount() - 1, 20);
+            if (radius <= 0 || radius > MAX_LATENCY) {
+                radius = MAX_LATENCY;
+            }
+            logger.debug("flooding " + advert + " within " + radius + " ms");
+            node.network().floodLatency(message, Network.FLOOD_SERVICE, radius);
+        } else if (metric.equalsIgnoreCase("neighbours")
+                || metric.equalsIgnoreCase("hops")) {
+            logger.debug("flooding " + advert + " within "
+                    + advert.getCount() + " hops");
+            node.network().floodHops(message, Network.FLOOD_SERVICE,
+                    advert.getCount());
+        } else {
+            message.release();
+            throw new Exception("unknown flood metric: " + metric);
+        }
+
+        synchronized (this) {
+            advertsSend++;
+        }
+    }
+
+    public void receive(Message message) {
+        Advert advert;
+        try {
+            advert = (Advert) message.readObject();
+        } catch (Exception e) {
+            logger.warn("could not read advert from " + message.getSource(),
+                    e);
+            return;
+        }
+
+        synchronized (this) {
+            advertsReceived++;
+        }
+
+        node.jobService().handleJobAdvert(advert);
+    }
+
+    public Message handleRequest(Message request) throws Exception {
+        throw new Exception("flood service does not handle requests");
+    }
+
+    public synchronized Map<String, String> getStats() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        result.put("adverts.send", Long.toString(advertsSend));
+        result.put("adverts.received", Long.toString(advertsReceived));
+
+        return result;
+    }
+
+}
@@ -0,0 +1,227 @@
+package ibis.zorilla.net;
+
+import ibis.zorilla.cluster.Coordinates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Floods broadcast messages (BROADCAST_HOPS and BROADCAST_LATENCY) through the
+ * network. Every node forwards a broadcast at most once (using a rotating
+ * Bloom filter of broadcasts seen recently), and to a limited number of
+ * neighbours only.
+ */
+final class Flooder {
+
+    // maximum number of neighbours a broadcast is forwarded to by each node
+    public static final int MAX_FAN_OUT = 8;
+
+    // broadcasts are remembered for between one and two times this (ms)
+    public static final long SEEN_ROTATION_INTERVAL = 60 * 1000;
+
+    // size (in bits) of each Bloom filter, should be a power of two
+    static final int FILTER_BITS = 1 << 20;
+
+    // number of hash functions used by the Bloom filters
+    static final int FILTER_HASHES = 4;
+
+    private static final Logger logger = Logger.getLogger(Flooder.class);
+
+    /**
+     * Simple Bloom filter over (source, sequence number) pairs.
+     */
+    private static final class BloomFilter {
+
+        private final long[] bits;
+
+        BloomFilter(int size) {
+            bits = new long[size / 64];
+        }
+
+        private static long mix(long value) {
+            // finalizer of MurmurHash3
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            value *= 0xc4ceb9fe1a85ec53L;
+            value ^= value >>> 33;
+            return value;
+        }
+
+        private int index(long hash1, long hash2, int i) {
+            long combined = hash1 + (i * hash2);
+            return (int) (combined & ((bits.length * 64) - 1));
+        }
+
+        boolean contains(long hash1, long hash2) {
+            for (int i = 0; i < FILTER_HASHES; i++) {
+                int index = index(hash1, hash2, i);
+                if ((bits[index >>> 6] & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long hash1, long hash2) {
+            for (int i = 0; i < FILTER_HASHES; i++) {
+                int index = index(hash1, hash2, i);
+                bits[index >>> 6] |= (1L << index);
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = 0;
+            }
+        }
+    }
+
+    private final Network network;
+
+    // broadcasts seen in this and the previous rotation interval
+    private BloomFilter current;
+
+    private BloomFilter previous;
+
+    private long nextRotation;
+
+    private int nextSequenceNr = 0;
+
+    Flooder(Network network) {
+        this.network = network;
+
+        current = new BloomFilter(FILTER_BITS);
+        previous = new BloomFilter(FILTER_BITS);
+        nextRotation = System.currentTimeMillis() + SEEN_ROTATION_INTERVAL;
+    }
+
+    /**
+     * Returns true if the broadcast with the given source and sequence number
+     * was seen before, and marks it as seen otherwise.
+     */
+    private synchronized boolean seen(UUID source, int sequenceNr) {
+        long now = System.currentTimeMillis();
+        if (now >= nextRotation) {
+            BloomFilter oldest = previous;
+            oldest.clear();
+            previous = current;
+            current = oldest;
+            nextRotation = now + SEEN_ROTATION_INTERVAL;
+        }
+
+        long hash1 = BloomFilter.mix(source.getMostSignificantBits()
+                ^ sequenceNr);
+        long hash2 = BloomFilter.mix(source.getLeastSignificantBits()
+                + sequenceNr) | 1;
+
+        if (current.contains(hash1, hash2) || previous.contains(hash1, hash2)) {
+            return true;
+        }
+
+        current.add(hash1, hash2);
+        return false;
+    }
+
+    private synchronized int nextSequenceNr() {
+        return nextSequenceNr++;
+    }
+
+    /**
+     * Starts a new broadcast. The message is not delivered locally.
+     */
+    void flood(Message message, Message.MessageType type, int moduleID,
+            int maxDistance) {
+        NodeInfo self = network.getNodeInfo();
+
+        message.setType(type);
+        message.setModuleID(moduleID);
+        message.setSource(self);
+        message.setDestination(null);
+        message.setHopCount(0);
+        message.setMaxDistance(maxDistance);
+        // the call ID doubles as sequence number of broadcasts
+        message.setCallID(nextSequenceNr());
+
+        seen(self.getID(), message.getCallID());
+
+        forward(message, null);
+    }
+
+    /**
+     * Handles a broadcast received from the given connection. Returns true if
+     * the message should also be delivered locally, false if it is a
+     * duplicate.
+     */
+    boolean received(Message message, Connection from) {
+        NodeInfo source = message.getSource();
+
+        if (source == null) {
+            logger.warn("received broadcast without source from " + from);
+            return false;
+        }
+
+        if (seen(source.getID(), message.getCallID())) {
+            return false;
+        }
+
+        forward(message, from);
+        return true;
+    }
+
+    private void forward(Message message, Connection from) {
+        int hops = message.getHopCount() + 1;
+
+        if (message.getType() == Message.MessageType.BROADCAST_HOPS
+                && hops > message.getMaxDistance()) {
+            return;
+        }
+
+        UUID sourceID = message.getSource().getID();
+        Coordinates center = message.getSource().getCoordinates();
+
+        List<Connection> targets = new ArrayList<Connection>();
+
+        // closest neighbours first
+        for (Connection connection : network.getConnectionsByDistance()) {
+            NodeInfo remote = connection.getRemoteInfo();
+
+            if (connection == from || remote == null
+                    || remote.getID().equals(sourceID)) {
+                continue;
+            }
+
+            // prune neighbours outside the latency radius around the source
+            if (message.getType() == Message.MessageType.BROADCAST_LATENCY
+                    && remote.getCoordinates().distance(center) > message
+                            .getMaxDistance()) {
+                continue;
+            }
+
+            targets.add(connection);
+        }
+
+        if (targets.size() > MAX_FAN_OUT) {
+            if (message.getType() == Message.MessageType.BROADCAST_HOPS) {
+                // spread hop limited broadcasts in random directions
+                Collections.shuffle(targets);
+            }
+            targets = targets.subList(0, MAX_FAN_OUT);
+        }
+
+        message.setHopCount(hops);
+
+        for (Connection connection : targets) {
+            try {
+                connection.send(message);
+            } catch (NetworkException e) {
+                logger.debug("could not forward broadcast to " + connection,
+                        e);
+            }
+        }
+    }
+}
@@ -2,9 +2,17 @@
 
 package ibis.zorilla.net;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
+import java.nio.charset.Charset;
+
+import ibis.zorilla.util.SizeOf;
 
 public class Message {
 
@@ -15,6 +23,16 @@ public class Message {
     public static final byte FALSE = 0;
     public static final byte TRUE = 1;
 
+    // maximum size of a variable length int and long
+    public static final int MAX_VARINT_SIZE = 5;
+
+    public static final int MAX_VARLONG_SIZE = 10;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // default (and maximum) size of the content of a message
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
     private MessageType type;
 
     private NodeInfo source;
@@ -25,15 +43,70 @@ public class Message {
 
     private int hopCount;
 
+    // identifies the call a request, reply or error belongs to
+    private int callID;
+
     // content of message
     private ByteBuffer content;
 
+    // buffer to return to the pool when this message is released, if any
+    private ByteBuffer pooled;
+
+    // true if this message was received from the network
+    private boolean received = false;
+
     /**
      * Maximum distance this message can travel. Can be expressed in hops, ms
      * rtt latency, or some other metric, depending on the message type.
      */
     private int maxDistance;
 
+    /**
+     * Creates a new (empty) message. The content of a message is everything
+     * written to it before it is handed to the network.
+     */
+    public Message() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a new (empty) message which can hold at least the given number
+     * of bytes. The content buffer is taken from a pool, see {@link #release()}.
+     */
+    public Message(int capacity) {
+        this(MessagePool.acquire(capacity), null);
+        pooled = content;
+
+        // written in native order, the network tells the receiver which
+        // order that is (see order(ByteOrder))
+        content.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates a message with the given buffer as content, for instance a
+     * message received from the network. The "pooled" buffer (if any) is
+     * returned to the pool when this message is released.
+     */
+    Message(ByteBuffer content, ByteBuffer pooled) {
+        this.content = content;
+        this.pooled = pooled;
+        type = MessageType.NORMAL;
+    }
+
+    /**
+     * Returns the content buffer of this message to the pool. The message
+     * cannot be used afterwards. The network releases messages sent, and
+     * messages handed to a {@link MessageHandler} once the handler returns.
+     * Replies returned by a call should be released by the caller.
+     */
+    public void release() {
+        if (pooled != null) {
+            MessagePool.release(pooled);
+        }
+        pooled = null;
+        content = null;
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -74,6 +147,14 @@ public class Message {
         this.hopCount = hopCount;
     }
 
+    int getCallID() {
+        return callID;
+    }
+
+    void setCallID(int callID) {
+        this.callID = callID;
+    }
+
     int getMaxDistance() {
         return maxDistance;
     }
@@ -86,8 +167,36 @@ public class Message {
         return content;
     }
 
+    void setReceived() {
+        received = true;
+    }
+
+    /**
+     * Returns (a view of) the content to send. This is everything written so
+     * far for new messages, and the entire content for received messages
+     * which are forwarded.
+     */
+    ByteBuffer contentToSend() {
+        ByteBuffer result = content.duplicate();
+
+        if (received) {
+            result.position(0);
+        } else {
+            result.flip();
+        }
+        return result;
+    }
+
     // functions acting on the content buffer
 
+    public ByteOrder order() {
+        return content.order();
+    }
+
+    void order(ByteOrder order) {
+        content.order(order);
+    }
+
     public int capacity() {
         return content.capacity();
     }
@@ -158,18 +267,76 @@ public class Message {
         return content.getDouble();
     }
 
+    /**
+     * Reads a string written with {@link #writeString(String)}.
+     */
     public String readString() throws IOException {
-        throw new IOException("cannot read strings (yet)");
+        int length = readVarInt() - 1;
+
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > content.remaining()) {
+            throw new IOException("invalid string length " + length);
+        }
+
+        // decode directly from the content buffer
+        ByteBuffer bytes = content.slice();
+        bytes.limit(length);
+        content.position(content.position() + length);
+
+        return UTF8.decode(bytes).toString();
+    }
+
+    /**
+     * Reads a (positive) integer written with {@link #writeVarInt(int)}.
+     */
+    public int readVarInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = content.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed variable length integer");
+    }
+
+    /**
+     * Reads a (positive) long written with {@link #writeVarLong(long)}.
+     */
+    public long readVarLong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = content.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed variable length long");
     }
 
     public Object readObject() throws IOException, ClassNotFoundException {
-        throw new IOException("cannot read objects (yet)");
+        int length = readInt();
+        if (length < 0 || length > content.remaining()) {
+            throw new IOException("invalid object length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        readArray(bytes);
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes));
+        Object result = in.readObject();
+        in.close();
+
+        return result;
     }
 
     public void readArray(boolean[] destination) throws IOException {
-        for (int i = 0; i < destination.length; i++) {
-            destination[i] = readBoolean();
-        }
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(byte[] destination) throws IOException {
@@ -177,65 +344,112 @@ public class Message {
     }
 
     public void readArray(char[] destination) throws IOException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(short[] destination) throws IOException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(int[] destination) throws IOException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(long[] destination) throws IOException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(float[] destination) throws IOException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(double[] destination) throws IOException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(Object[] destination) throws IOException,
             ClassNotFoundException {
+        readArray(destination, 0, destination.length);
     }
 
     public void readArray(boolean[] destination, int offset, int size)
             throws IOException {
+        for (int i = offset; i < offset + size; i++) {
+            destination[i] = readBoolean();
+        }
     }
 
     public void readArray(byte[] destination, int offset, int size)
             throws IOException {
+        content.get(destination, offset, size);
     }
 
+    // bulk reads use a view buffer (in the byte order of the content), and
+    // then skip the bytes read in the content buffer itself
+
     public void readArray(char[] destination, int offset, int size)
             throws IOException {
+        content.asCharBuffer().get(destination, offset, size);
+        skip(size * SizeOf.CHAR);
     }
 
     public void readArray(short[] destination, int offset, int size)
             throws IOException {
+        content.asShortBuffer().get(destination, offset, size);
+        skip(size * SizeOf.SHORT);
     }
 
     public void readArray(int[] destination, int offset, int size)
             throws IOException {
+        content.asIntBuffer().get(destination, offset, size);
+        skip(size * SizeOf.INT);
     }
 
     public void readArray(long[] destination, int offset, int size)
             throws IOException {
+        content.asLongBuffer().get(destination, offset, size);
+        skip(size * SizeOf.LONG);
     }
 
     public void readArray(float[] destination, int offset, int size)
             throws IOException {
+        content.asFloatBuffer().get(destination, offset, size);
+        skip(size * SizeOf.FLOAT);
     }
 
     public void readArray(double[] destination, int offset, int size)
             throws IOException {
+        content.asDoubleBuffer().get(destination, offset, size);
+        skip(size * SizeOf.DOUBLE);
     }
 
     public void readArray(Object[] destination, int offset, int size)
             throws IOException, ClassNotFoundException {
+        for (int i = offset; i < offset + size; i++) {
+            destination[i] = readObject();
+        }
     }
 
+    /**
+     * Fills the remaining space of the given buffer with content of this
+     * message.
+     */
     public void readByteBuffer(ByteBuffer value) throws IOException,
             ReadOnlyBufferException {
+        int length = value.remaining();
+
+        if (length > content.remaining()) {
+            throw new IOException("not enough content left in message");
+        }
+
+        ByteBuffer source = content.slice();
+        source.limit(length);
+        value.put(source);
+        skip(length);
+    }
+
+    private void skip(int bytes) {
+        content.position(content.position() + bytes);
     }
 
     public void writeBoolean(boolean value) throws IOException {
@@ -274,18 +488,78 @@ public class Message {
         content.putDouble(value);
     }
 
+    /**
+     * Writes a string as a variable length length-prefix, followed by the
+     * UTF-8 encoding of the string. The string may be null.
+     */
     public void writeString(String value) throws IOException {
-        throw new IOException("cannot write strings (yet)");
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarInt(bytes.length + 1);
+        content.put(bytes);
+    }
+
+    /**
+     * Writes a (positive) integer in as few bytes as possible, 7 bits per
+     * byte.
+     */
+    public void writeVarInt(int value) throws IOException {
+        if (value < 0) {
+            throw new IOException("cannot write negative value as varint: "
+                    + value);
+        }
+
+        while ((value & ~0x7F) != 0) {
+            content.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        content.put((byte) value);
+    }
+
+    /**
+     * Writes a (positive) long in as few bytes as possible, 7 bits per byte.
+     */
+    public void writeVarLong(long value) throws IOException {
+        if (value < 0) {
+            throw new IOException("cannot write negative value as varlong: "
+                    + value);
+        }
+
+        while ((value & ~0x7FL) != 0) {
+            content.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        content.put((byte) value);
+    }
+
+    /**
+     * Upper bound of the number of bytes needed to write the given string
+     * with {@link #writeString(String)}.
+     */
+    public static int maxEncodedSize(String value) {
+        if (value == null) {
+            return MAX_VARINT_SIZE;
+        }
+        // at most 3 bytes per (UTF-16) char in UTF-8
+        return MAX_VARINT_SIZE + (3 * value.length());
     }
 
     public void writeObject(Object value) throws IOException {
-        throw new IOException("cannot write objects (yet)");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+
+        writeInt(bytes.size());
+        writeArray(bytes.toByteArray());
     }
 
     public void writeArray(boolean[] value) throws IOException {
-        for (int i = 0; i < value.length; i++) {
-            writeBoolean(value[i]);
-        }
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(byte[] value) throws IOException {
@@ -293,33 +567,31 @@ public class Message {
     }
 
     public void writeArray(char[] value) throws IOException {
-        content.asCharBuffer().put(value);
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(short[] value) throws IOException {
-        content.asShortBuffer().put(value);
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(int[] value) throws IOException {
-        content.asIntBuffer().put(value);
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(long[] value) throws IOException {
-        content.asLongBuffer().put(value);
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(float[] value) throws IOException {
-        content.asFloatBuffer().put(value);
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(double[] value) throws IOException {
-        content.asDoubleBuffer().put(value);
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(Object[] value) throws IOException {
-        for (int i = 0; i < value.length; i++) {
-            writeObject(value);
-        }
+        writeArray(value, 0, value.length);
     }
 
     public void writeArray(boolean[] value, int offset, int length)
@@ -334,34 +606,43 @@ public class Message {
         content.put(value, offset, length);
     }
 
+    // bulk writes use a view buffer (in the byte order of the content), and
+    // then skip the bytes written in the content buffer itself
+
     public void writeArray(char[] value, int offset, int length)
             throws IOException {
         content.asCharBuffer().put(value, offset, length);
+        skip(length * SizeOf.CHAR);
     }
 
     public void writeArray(short[] value, int offset, int length)
             throws IOException {
         content.asShortBuffer().put(value, offset, length);
+        skip(length * SizeOf.SHORT);
     }
 
     public void writeArray(int[] value, int offset, int length)
             throws IOException {
         content.asIntBuffer().put(value, offset, length);
+        skip(length * SizeOf.INT);
     }
 
     public void writeArray(long[] value, int offset, int length)
             throws IOException {
         content.asLongBuffer().put(value, offset, length);
+        skip(length * SizeOf.LONG);
     }
 
     public void writeArray(float[] value, int offset, int length)
             throws IOException {
         content.asFloatBuffer().put(value, offset, length);
+        skip(length * SizeOf.FLOAT);
     }
 
     public void writeArray(double[] value, int offset, int length)
             throws IOException {
         content.asDoubleBuffer().put(value, offset, length);
+        skip(length * SizeOf.DOUBLE);
     }
 
     public void writeArray(Object[] value, int offset, int length)
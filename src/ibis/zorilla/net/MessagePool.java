@@ -0,0 +1,135 @@
+package ibis.zorilla.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of direct buffers used for the content of messages, and for frames sent
+ * and received by connections. Buffers come in a few fixed size classes, and
+ * are cut from large direct "slabs", so in steady state no buffers are
+ * allocated at all.
+ */
+final class MessagePool {
+
+    private static final Logger logger = Logger.getLogger(MessagePool.class);
+
+    // size of a single slab, buffers are allocated this many bytes at a time
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    // maximum number of bytes kept in the free list of a single size class
+    static final int MAX_POOLED_BYTES = 8 * 1024 * 1024;
+
+    private static final int[] SIZES = { 512, 4 * 1024, 16 * 1024,
+            Message.DEFAULT_SIZE, 2 * Message.DEFAULT_SIZE };
+
+    private static final SizeClass[] classes;
+
+    static {
+        classes = new SizeClass[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            classes[i] = new SizeClass(SIZES[i]);
+        }
+    }
+
+    private static class SizeClass {
+
+        private final int size;
+
+        // buffers not currently in use
+        private final ArrayList<ByteBuffer> free;
+
+        private final int maxFree;
+
+        private long allocated = 0;
+
+        SizeClass(int size) {
+            this.size = size;
+            free = new ArrayList<ByteBuffer>();
+            maxFree = MAX_POOLED_BYTES / size;
+        }
+
+        synchronized ByteBuffer acquire() {
+            if (free.isEmpty()) {
+                allocateSlab();
+            }
+            ByteBuffer result = free.remove(free.size() - 1);
+            result.clear();
+            result.order(ByteOrder.BIG_ENDIAN);
+            return result;
+        }
+
+        synchronized void release(ByteBuffer buffer) {
+            if (free.size() < maxFree) {
+                free.add(buffer);
+            }
+            // else: leave it to the garbage collector
+        }
+
+        // cut a new slab into buffers of this size class
+        private void allocateSlab() {
+            int count = Math.max(1, SLAB_SIZE / size);
+            ByteBuffer slab = ByteBuffer.allocateDirect(count * size);
+
+            for (int i = 0; i < count; i++) {
+                slab.limit((i + 1) * size);
+                slab.position(i * size);
+                free.add(slab.slice());
+            }
+            allocated += count;
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("allocated slab of " + count + " buffers of "
+                        + size + " bytes, " + allocated + " in total");
+            }
+        }
+    }
+
+    private MessagePool() {
+        // only static methods
+    }
+
+    private static SizeClass getClass(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (size <= sizeClass.size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity. Buffers
+     * larger than the largest size class are allocated (and not pooled).
+     */
+    static ByteBuffer acquire(int size) {
+        SizeClass sizeClass = getClass(size);
+
+        if (sizeClass == null) {
+            return ByteBuffer.allocate(size);
+        }
+
+        return sizeClass.acquire();
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer may not be used afterwards.
+     * Buffers not originating from this pool are ignored.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        SizeClass sizeClass = getClass(buffer.capacity());
+
+        if (sizeClass == null || sizeClass.size != buffer.capacity()) {
+            return;
+        }
+
+        sizeClass.release(buffer);
+    }
+
+}
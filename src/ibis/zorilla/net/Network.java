@@ -1,74 +1,734 @@
 package ibis.zorilla.net;
 
+import ibis.util.ThreadPool;
 import ibis.zorilla.Config;
 import ibis.zorilla.Node;
+import ibis.zorilla.cluster.Coordinates;
 
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Network of a Zorilla node. Keeps persistent connections to other nodes, and
+ * multiplexes the messages of all modules over these connections. All I/O is
+ * done by a single selector thread, messages are handed to the
+ * {@link MessageHandler} registered for the module ID of the message.
+ */
 public class Network extends Thread {
 
+    public static final int GOSSIP_SERVICE = 1;
+
+    public static final int VIVALDI_SERVICE = 2;
+
+    public static final int CLUSTER_SERVICE = 3;
+
+    public static final int FLOOD_SERVICE = 4;
+
     public static final int MONITORING_MODULE_ID = 5;
-    
-    private final ConnectionSet superPeers;
-    
-    private final ConnectionSet neigbors;
 
-    public Network(Node node, Config config) {
+    // module IDs handed out by register(handler) start here
+    public static final int FIRST_DYNAMIC_MODULE_ID = 1000;
+
+    public static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    public static final int CALL_TIMEOUT = 60 * 1000;
+
+    // how often idle and dead connections are cleaned up (5 seconds)
+    public static final int MAINTENANCE_INTERVAL = 5 * 1000;
+
+    private static final Logger logger = Logger.getLogger(Network.class);
+
+    private final Node node;
+
+    private final Config config;
+
+    private final Selector selector;
+
+    // null if this node does not accept incoming connections
+    private final ServerSocketChannel serverChannel;
+
+    private final SmartSocketsAddress address;
+
+    private final ConnectionSet connections;
+
+    private final Router router;
+
+    private final Flooder flooder;
+
+    private final Map<Integer, MessageHandler> handlers;
+
+    // new connections, to be registered with the selector
+    private final LinkedList<Connection> newConnections;
+
+    // connections with data to write
+    private final LinkedList<Connection> writers;
+
+    private int nextModuleID = FIRST_DYNAMIC_MODULE_ID;
+
+    private boolean ended = false;
+
+    // selector thread only
+    private long nextMaintenance = 0;
+
+    public Network(Node node, Config config) throws IOException {
+        this.node = node;
+        this.config = config;
+
+        selector = Selector.open();
+        connections = new ConnectionSet(config
+                .getIntProperty(Config.MAX_CONNECTIONS), config
+                .getIntProperty(Config.CONNECTION_IDLE_TIMEOUT) * 1000L);
+        router = new Router(this);
+        flooder = new Flooder(this);
+        handlers = new HashMap<Integer, MessageHandler>();
+        newConnections = new LinkedList<Connection>();
+        writers = new LinkedList<Connection>();
+
+        int port = config.getIntProperty(Config.PORT);
+
+        if (config.getBooleanProperty(Config.FIREWALL)) {
+            serverChannel = null;
+        } else {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            port = serverChannel.socket().getLocalPort();
+        }
+
+        address = new SmartSocketsAddress(localAddress().getHostAddress(),
+                port);
 
         setName("Zorilla Network");
         setDaemon(true);
     }
 
+    /**
+     * Returns an address of this machine other nodes can reach us at. The
+     * address of the local host name is often a loopback address (e.g.
+     * 127.0.1.1 on Debian), so we look for a global address of a network
+     * interface first, then for a site local one. IPv4 is preferred.
+     */
+    private static InetAddress localAddress() throws IOException {
+        InetAddress global = null;
+        InetAddress site = null;
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface
+                .getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+
+            Enumeration<InetAddress> addresses = networkInterface
+                    .getInetAddresses();
+            while (addresses.hasMoreElements()) {
+                InetAddress address = addresses.nextElement();
+
+                if (address.isLoopbackAddress() || address.isLinkLocalAddress()
+                        || address.isAnyLocalAddress()) {
+                    continue;
+                }
+
+                if (address.isSiteLocalAddress()) {
+                    site = preferIPv4(site, address);
+                } else {
+                    global = preferIPv4(global, address);
+                }
+            }
+        }
+
+        if (global != null) {
+            return global;
+        }
+        if (site != null) {
+            return site;
+        }
+
+        logger.warn("no external network interface found, other nodes may"
+                + " not be able to reach this node");
+        return InetAddress.getLocalHost();
+    }
+
+    private static InetAddress preferIPv4(InetAddress current,
+            InetAddress candidate) {
+        if (current == null) {
+            return candidate;
+        }
+        if (!(current instanceof Inet4Address)
+                && candidate instanceof Inet4Address) {
+            return candidate;
+        }
+        return current;
+    }
+
     // info for this node
     public NodeInfo getNodeInfo() {
-        return null;
-//            return new NodeInfo(id, name, config.getProperty(Config.CLUSTER_NAME),
-//                    vivaldiService.getCoordinates(), network.getAddress(), version,
-//                    config.isHub());
+        Coordinates coordinates;
+        if (node.vivaldiService() == null) {
+            // not initialized yet
+            coordinates = new Coordinates();
+        } else {
+            coordinates = node.vivaldiService().getCoordinates();
+        }
+
+        return new NodeInfo(node.getID(), node.getName(), config
+                .getProperty(Config.CLUSTER_NAME), coordinates, address, Node
+                .getVersion(), config.getBooleanProperty(Config.START_HUB));
     }
 
     public SmartSocketsAddress getAddress() {
-        return null;
+        return address;
     }
 
     // register a handler for a certain id
-    public void register(MessageHandler handler, int handlerID) {
-
+    public synchronized void register(MessageHandler handler, int handlerID) {
+        if (handlers.containsKey(handlerID)) {
+            logger.warn("replacing handler for module " + handlerID);
+        }
+        handlers.put(handlerID, handler);
     }
 
     // register a handler, id assigned at random
-    public int register(MessageHandler handler) {
-        return 0;
+    public synchronized int register(MessageHandler handler) {
+        while (handlers.containsKey(nextModuleID)) {
+            nextModuleID++;
+        }
+        int result = nextModuleID++;
+        handlers.put(result, handler);
+        return result;
+    }
+
+    public synchronized void deRegister(int handlerID) {
+        handlers.remove(handlerID);
     }
 
-    public void deRegister(int handlerID) {
+    private synchronized MessageHandler getHandler(int moduleID) {
+        return handlers.get(moduleID);
+    }
+
+    public Router getRouter() {
+        return router;
+    }
+
+    /**
+     * Sends a message to the given node. If there is no connection to this
+     * node yet, a new connection is set up. Only if that fails (for instance
+     * because the node is behind a firewall) the message is routed via other
+     * nodes. The message is released once sent.
+     */
+    public void send(Message message, NodeInfo node, int moduleID)
+            throws NetworkException {
+        message.setModuleID(moduleID);
+        message.setSource(getNodeInfo());
+        message.setDestination(node);
+
+        try {
+            try {
+                getConnection(node).send(message);
+                return;
+            } catch (NetworkException e) {
+                logger.debug("could not send message directly, routing", e);
+            }
+
+            try {
+                router.route(message, connections.getConnections());
+            } catch (RoutingException e) {
+                throw new NetworkException("could not send message to " + node,
+                        e);
+            }
+        } finally {
+            message.release();
+        }
+    }
 
+    /**
+     * Sends a message to all nodes within the given latency (in milliseconds,
+     * estimated with Vivaldi coordinates) of this node. The message is released
+     * once sent.
+     */
+    public void floodLatency(Message message, int moduleID, int latency) {
+        try {
+            flooder.flood(message, Message.MessageType.BROADCAST_LATENCY,
+                    moduleID, latency);
+        } finally {
+            message.release();
+        }
     }
 
-    public void send(Message message, NodeInfo node, int moduleID) {
+    /**
+     * Sends a message to all nodes within the given number of hops of this
+     * node. The message is released once sent.
+     */
+    public void floodHops(Message message, int moduleID, int hops) {
+        try {
+            flooder.flood(message, Message.MessageType.BROADCAST_HOPS,
+                    moduleID, hops);
+        } finally {
+            message.release();
+        }
     }
-    
-    public void floodLatency(Message message, NodeInfo destination, int latency) {
+
+    /**
+     * Sends a request to the given node, and waits for the reply. The request
+     * is released once sent, the reply should be released by the caller.
+     *
+     * @throws NetworkException
+     *             if the request could not be delivered, the remote handler
+     *             threw an exception, or no reply was received in time.
+     */
+    public Message call(Message request, NodeInfo destination, int moduleID)
+            throws NetworkException {
+        return call(request, destination, moduleID, CALL_TIMEOUT);
     }
-    
-    public void floodHops(Message message, NodeInfo destination, int hops) {
+
+    public Message call(Message request, NodeInfo destination, int moduleID,
+            long timeout) throws NetworkException {
+        return callAsync(request, destination, moduleID).get(timeout);
     }
 
+    /**
+     * Sends a request to the given node, without waiting for the reply. Many
+     * calls can be outstanding at the same time, even to the same node. The
+     * request is released once sent.
+     */
+    public CallFuture callAsync(Message request, NodeInfo destination,
+            int moduleID) throws NetworkException {
+        request.setModuleID(moduleID);
+        request.setSource(getNodeInfo());
+        request.setDestination(destination);
+
+        try {
+            return getConnection(destination).call(request);
+        } finally {
+            request.release();
+        }
+    }
 
-    public Message call(Message request, NodeInfo destination) throws Exception {
-        return null;
+    public Message call(Message request, NodeInfo destination)
+            throws NetworkException {
+        return call(request, destination, request.getModuleID());
     }
 
     public void end() {
-        // TODO Auto-generated method stub
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+        }
+
+        for (Connection connection : connections.getConnections()) {
+            connection.close();
+        }
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // IGNORE
+        }
 
+        selector.wakeup();
+    }
+
+    private synchronized boolean hasEnded() {
+        return ended;
     }
 
     /**
      * Returns a (possibly new) connection to the given peer.
-     * @param peer the peer node to connect to
+     *
+     * @param peer
+     *            the peer node to connect to
      */
-    public void getConnection(SmartSocketsAddress peer) throws NetworkException {
-        // TODO Auto-generated method stub
-        
+    public Connection getConnection(SmartSocketsAddress peer)
+            throws NetworkException {
+        Connection result = connections.getOrReserve(peer);
+
+        if (result != null) {
+            return result;
+        }
+
+        try {
+            result = connect(peer);
+        } finally {
+            if (result == null) {
+                connections.connectFailed(peer);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all connections to identified peers, closest peer first.
+     */
+    public Connection[] getConnectionsByDistance() {
+        return connections.getConnectionsByDistance();
+    }
+
+    /**
+     * Returns a (possibly new) connection to the given node.
+     */
+    public Connection getConnection(NodeInfo peer) throws NetworkException {
+        if (peer == null) {
+            throw new NetworkException("no destination given");
+        }
+        // use the newest address known for this node
+        peer = router.updateNodeInfo(peer);
+
+        Connection result = connections.get(peer.getID());
+
+        if (result == null || result.isClosed()) {
+            result = getConnection(peer.getAddress());
+        }
+
+        result.setRemoteInfo(peer);
+
+        return result;
+    }
+
+    private Connection connect(SmartSocketsAddress peer)
+            throws NetworkException {
+        if (hasEnded()) {
+            throw new NetworkException("network already ended");
+        }
+
+        logger.debug("connecting to " + peer);
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(peer.toSocketAddress(), CONNECT_TIMEOUT);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // IGNORE
+                }
+            }
+            throw new NetworkException("could not connect to " + peer, e);
+        }
+
+        Connection connection = new Connection(this, channel, peer);
+        connection.sendHello(getNodeInfo());
+        connections.add(connection);
+        addConnection(connection);
+
+        return connection;
+    }
+
+    private void addConnection(Connection connection) {
+        synchronized (newConnections) {
+            newConnections.add(connection);
+        }
+        selector.wakeup();
+    }
+
+    // called by a connection which has data to write
+    void wantWrite(Connection connection) {
+        synchronized (writers) {
+            writers.add(connection);
+        }
+        selector.wakeup();
+    }
+
+    private void closeConnection(Connection connection) {
+        logger.debug("closing " + connection);
+
+        connection.close();
+        connections.remove(connection);
+    }
+
+    // *** CALLBACKS FROM CONNECTIONS (ON SELECTOR THREAD) ***\\
+
+    void helloReceived(Connection connection, NodeInfo info) {
+        logger.debug("got hello from " + info);
+
+        router.updateNodeInfo(info);
+
+        Connection old = connections.identified(connection, info);
+
+        if (old != null && old.isClosed()) {
+            closeConnection(old);
+        }
+    }
+
+    void messageReceived(final Connection connection, final Message message) {
+        router.updateNodeInfo(message.getSource());
+
+        NodeInfo destination = message.getDestination();
+        if (message.getType() != Message.MessageType.NORMAL) {
+            // broadcast, pass it on (once), and handle locally
+            if (!flooder.received(message, connection)) {
+                message.release();
+                return;
+            }
+        } else if (destination != null
+                && !destination.getID().equals(node.getID())) {
+            // not for us, pass it on
+            try {
+                router.route(message, connections.getConnections());
+            } catch (RoutingException e) {
+                // dead end, try to connect to the destination directly.
+                // Connecting blocks, so not on the selector thread
+                forward(message, destination, e);
+                return;
+            }
+            message.release();
+            return;
+        }
+
+        final MessageHandler handler = getHandler(message.getModuleID());
+
+        if (handler == null) {
+            logger.warn("received message for unknown module "
+                    + message.getModuleID() + " from " + connection);
+            message.release();
+            return;
+        }
+
+        // handle message outside of selector thread
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                try {
+                    handler.receive(message);
+                } catch (Throwable t) {
+                    logger.error("error on handling message from "
+                            + connection, t);
+                } finally {
+                    message.release();
+                }
+            }
+        }, "message handler");
+    }
+
+    // sends a message we could not route over a new, direct connection
+    private void forward(final Message message, final NodeInfo destination,
+            final RoutingException cause) {
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                try {
+                    getConnection(destination).send(message);
+                } catch (NetworkException e) {
+                    logger.warn("dropping message for " + destination
+                            + ": no route (" + cause.getMessage()
+                            + ") and could not connect directly", e);
+                } finally {
+                    message.release();
+                }
+            }
+        }, "forwarder");
+    }
+
+    void requestReceived(final Connection connection, final Message request) {
+        final MessageHandler handler = getHandler(request.getModuleID());
+
+        // handle request outside of selector thread
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                try {
+                    if (handler == null) {
+                        connection.sendError(request.getCallID(),
+                                "unknown module: " + request.getModuleID());
+                        return;
+                    }
+
+                    Message reply;
+                    try {
+                        reply = handler.handleRequest(request);
+                    } catch (Exception e) {
+                        logger.debug("handler threw exception", e);
+                        connection.sendError(request.getCallID(), e
+                                .toString());
+                        return;
+                    }
+
+                    if (reply == null) {
+                        reply = new Message(0);
+                    }
+                    reply.setModuleID(request.getModuleID());
+                    reply.setSource(getNodeInfo());
+                    reply.setDestination(request.getSource());
+                    reply.setCallID(request.getCallID());
+
+                    try {
+                        connection.sendReply(reply);
+                    } finally {
+                        reply.release();
+                    }
+                } catch (NetworkException e) {
+                    logger.warn("could not send reply to " + connection, e);
+                } finally {
+                    request.release();
+                }
+            }
+        }, "request handler");
+    }
+
+    // *** SELECTOR THREAD ***\\
+
+    private void registerNewConnections() {
+        synchronized (newConnections) {
+            while (!newConnections.isEmpty()) {
+                Connection connection = newConnections.removeFirst();
+                try {
+                    int ops = SelectionKey.OP_READ;
+                    if (connection.hasPendingWrites()) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                    SelectionKey key = connection.getChannel().register(
+                            selector, ops, connection);
+                    connection.setKey(key);
+                } catch (IOException e) {
+                    logger.warn("could not register " + connection, e);
+                    closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    private void updateWriteInterest() {
+        synchronized (writers) {
+            while (!writers.isEmpty()) {
+                Connection connection = writers.removeFirst();
+                SelectionKey key = connection.getKey();
+
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+
+            InetSocketAddress remote = (InetSocketAddress) channel.socket()
+                    .getRemoteSocketAddress();
+
+            Connection connection = new Connection(this, channel,
+                    new SmartSocketsAddress(remote.getAddress()
+                            .getHostAddress(), remote.getPort()));
+
+            connection.sendHello(getNodeInfo());
+            connections.add(connection);
+
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ
+                    | SelectionKey.OP_WRITE, connection);
+            connection.setKey(key);
+
+            logger.debug("accepted new " + connection);
+        } catch (Exception e) {
+            logger.warn("error on accepting connection", e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+
+        try {
+            if (key.isReadable()) {
+                connection.handleRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+                if (connection.handleWrite()) {
+                    // nothing left to write
+                    key.interestOps(key.interestOps()
+                            & ~SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("error on " + connection + ", closing", e);
+            key.cancel();
+            closeConnection(connection);
+        }
+    }
+
+    // close dead, idle and excess connections, probe silent ones
+    private void maintain() {
+        for (Connection connection : connections.selectEvictions()) {
+            closeConnection(connection);
+        }
+
+        for (Connection connection : connections.selectProbes()) {
+            try {
+                connection.probe();
+            } catch (NetworkException e) {
+                closeConnection(connection);
+            }
+        }
+    }
+
+    public void run() {
+        while (!hasEnded()) {
+            registerNewConnections();
+            updateWriteInterest();
+
+            try {
+                selector.select(MAINTENANCE_INTERVAL);
+            } catch (IOException e) {
+                logger.error("error on select", e);
+                continue;
+            }
+
+            if (System.currentTimeMillis() >= nextMaintenance) {
+                maintain();
+                nextMaintenance = System.currentTimeMillis()
+                        + MAINTENANCE_INTERVAL;
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys()
+                    .iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    handle(key);
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // IGNORE
+        }
+        logger.info("network stopped");
     }
 
 }
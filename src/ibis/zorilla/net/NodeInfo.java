@@ -1,11 +1,13 @@
 package ibis.zorilla.net;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
 import ibis.zorilla.cluster.Coordinates;
+import ibis.zorilla.util.SizeOf;
 
 public class NodeInfo implements Serializable {
 
@@ -43,6 +45,13 @@ public class NodeInfo implements Serializable {
 
     NodeInfo(UUID id, String name, String clusterName, Coordinates coordinate,
             SmartSocketsAddress address, long version, boolean hub) {
+        this(id, name, clusterName, coordinate, address, version, hub, System
+                .currentTimeMillis());
+    }
+
+    private NodeInfo(UUID id, String name, String clusterName,
+            Coordinates coordinate, SmartSocketsAddress address, long version,
+            boolean hub, long creationTime) {
         this.id = id;
         this.name = name;
         this.clusterName = clusterName;
@@ -50,8 +59,79 @@ public class NodeInfo implements Serializable {
         this.address = address;
         this.version = version;
         this.hub = hub;
+        this.creationTime = creationTime;
+    }
+
+    /**
+     * Reads a node info written with {@link #writeTo(Message)}.
+     */
+    public static NodeInfo readFrom(Message message) throws IOException {
+        UUID id = new UUID(message.readLong(), message.readLong());
+        String name = message.readString();
+        // many nodes share the same cluster name
+        String clusterName = message.readString();
+        if (clusterName != null) {
+            clusterName = clusterName.intern();
+        }
 
-        creationTime = System.currentTimeMillis();
+        byte[] coordinateBytes = new byte[Coordinates.SIZE];
+        message.readArray(coordinateBytes);
+        Coordinates coordinates = new Coordinates(coordinateBytes);
+
+        SmartSocketsAddress address = null;
+        if (message.readBoolean()) {
+            String host = message.readString();
+            int port = message.readVarInt();
+            address = new SmartSocketsAddress(host, port);
+        }
+
+        long version = message.readVarLong();
+        boolean hub = message.readBoolean();
+        long creationTime = message.readLong();
+
+        return new NodeInfo(id, name, clusterName, coordinates, address,
+                version, hub, creationTime);
+    }
+
+    /**
+     * Writes this node info in a compact binary form: 16 byte id, strings as
+     * UTF-8, coordinates as bytes, version as a variable length integer.
+     */
+    public void writeTo(Message message) throws IOException {
+        message.writeLong(id.getMostSignificantBits());
+        message.writeLong(id.getLeastSignificantBits());
+        message.writeString(name);
+        message.writeString(clusterName);
+        message.writeArray(coordinates.toBytes());
+
+        if (address == null) {
+            message.writeBoolean(false);
+        } else {
+            message.writeBoolean(true);
+            message.writeString(address.getHost());
+            message.writeVarInt(address.getPort());
+        }
+
+        message.writeVarLong(version);
+        message.writeBoolean(hub);
+        message.writeLong(creationTime);
+    }
+
+    /**
+     * Upper bound of the number of bytes written by {@link #writeTo(Message)}.
+     */
+    public int maxEncodedSize() {
+        int result = SizeOf.UUID + Coordinates.SIZE + SizeOf.BOOLEAN
+                + Message.MAX_VARLONG_SIZE + SizeOf.BOOLEAN + SizeOf.LONG;
+
+        result += Message.maxEncodedSize(name);
+        result += Message.maxEncodedSize(clusterName);
+
+        if (address != null) {
+            result += Message.maxEncodedSize(address.getHost())
+                    + Message.MAX_VARINT_SIZE;
+        }
+        return result;
     }
 
     public UUID getID() {
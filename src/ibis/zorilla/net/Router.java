@@ -1,39 +1,209 @@
 package ibis.zorilla.net;
 
+import ibis.zorilla.cluster.Coordinates;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
 
 /**
  * Router class to make all routing decisions. Also keeps track of all known
  * nodes.
- * 
+ *
+ * Messages are routed greedily: each node forwards a message to the connected
+ * node closest to the destination in Vivaldi space, as long as that node is
+ * closer to the destination than the current node itself.
+ *
  * @author Niels Drost
- * 
+ *
  */
 public class Router {
 
+    // maximum number of nodes in the routing table
+    public static final int MAX_NODES = 10000;
+
+    // maximum number of destinations in the route cache
+    public static final int ROUTE_CACHE_SIZE = 1000;
+
+    // maximum number of hops a message can travel before it is dropped
+    public static final int MAX_HOPS = 32;
+
+    private static final Logger logger = Logger.getLogger(Router.class);
+
+    // least recently used map with a maximum size
+    private static class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        BoundedMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private final Network network;
+
+    // newest known info of each node
+    private final Map<UUID, NodeInfo> nodes;
+
+    // next hop (node) used last time for each destination
+    private final Map<UUID, UUID> routeCache;
+
+    Router(Network network) {
+        this.network = network;
+
+        nodes = new BoundedMap<UUID, NodeInfo>(MAX_NODES);
+        routeCache = new BoundedMap<UUID, UUID>(ROUTE_CACHE_SIZE);
+    }
+
     /**
      * Returns the newest known info for the given node. Updates the newest
      * version if the info passed to this function happens to be newer than the
      * currently known info.
-     * 
+     *
      * @param info
      *            the node for which to fetch the newest info
-     * 
+     *
      * @return the newest known info for the given node. May be the exact same
      *         object passed as a parameter.
      */
-    public NodeInfo updateNodeInfo(NodeInfo info) {
-        return null;
+    public synchronized NodeInfo updateNodeInfo(NodeInfo info) {
+        if (info == null) {
+            return null;
+        }
+
+        NodeInfo result = NodeInfo.newest(nodes.get(info.getID()), info);
+        nodes.put(info.getID(), result);
+
+        return result;
     }
-    
+
+    /**
+     * Returns the newest known info of the node with the given ID, or null if
+     * the node is unknown.
+     */
+    public synchronized NodeInfo getNodeInfo(UUID id) {
+        return nodes.get(id);
+    }
+
+    private synchronized UUID getCachedRoute(UUID destination) {
+        return routeCache.get(destination);
+    }
+
+    private synchronized void cacheRoute(UUID destination, UUID nextHop) {
+        routeCache.put(destination, nextHop);
+    }
+
+    private synchronized void removeRoute(UUID destination) {
+        routeCache.remove(destination);
+    }
+
+    // distance of the given node to the destination, infinite if unknown
+    private static double distance(NodeInfo node, Coordinates destination) {
+        if (node == null || node.getCoordinates() == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return node.getCoordinates().distance(destination);
+    }
+
     /**
      * Routes the the given message to one (or more, or none) of the connections.
-     * 
+     *
      * @param message the message that needs to be routed
      * @param connections the possible connections to send the message to.
-     * 
+     *
      * @throws RoutingException
      */
-    public void route(Message message, Connection[] connections) throws RoutingException {
-        
+    public void route(Message message, Connection[] connections)
+            throws RoutingException {
+        if (message.getType() != Message.MessageType.NORMAL) {
+            throw new RoutingException("cannot route message of type "
+                    + message.getType());
+        }
+
+        if (message.getDestination() == null) {
+            throw new RoutingException("message has no destination");
+        }
+
+        if (message.getHopCount() >= MAX_HOPS) {
+            throw new RoutingException("message to "
+                    + message.getDestination() + " exceeded " + MAX_HOPS
+                    + " hops");
+        }
+
+        NodeInfo destination = updateNodeInfo(message.getDestination());
+        UUID destinationID = destination.getID();
+        Coordinates target = destination.getCoordinates();
+
+        Connection direct = null;
+        Connection previous = null;
+        Connection best = null;
+        double ownDistance = distance(network.getNodeInfo(), target);
+        double bestDistance = ownDistance;
+        UUID cached = getCachedRoute(destinationID);
+
+        for (Connection connection : connections) {
+            NodeInfo remote = connection.getRemoteInfo();
+
+            if (remote == null || connection.isClosed()) {
+                continue;
+            }
+
+            if (remote.getID().equals(destinationID)) {
+                direct = connection;
+            } else if (remote.getID().equals(cached)) {
+                previous = connection;
+            }
+
+            // only forward to nodes closer to the destination than ourselves
+            double distance = distance(remote, target);
+            if (distance < bestDistance) {
+                best = connection;
+                bestDistance = distance;
+            }
+        }
+
+        // prefer a direct connection, then the route used last time, as long
+        // as that node is still closer to the destination than ourselves.
+        // Coordinates drift, a stale route could bounce messages back to us
+        if (direct != null) {
+            best = direct;
+        } else if (previous != null) {
+            if (distance(previous.getRemoteInfo(), target) < ownDistance) {
+                best = previous;
+            } else {
+                removeRoute(destinationID);
+            }
+        }
+
+        if (best == null) {
+            removeRoute(destinationID);
+            throw new RoutingException("no route to " + destination);
+        }
+
+        message.setHopCount(message.getHopCount() + 1);
+
+        try {
+            best.send(message);
+        } catch (NetworkException e) {
+            removeRoute(destinationID);
+            throw new RoutingException("could not forward message to "
+                    + destination, e);
+        }
+
+        cacheRoute(destinationID, best.getRemoteInfo().getID());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("routed message for " + destination + " via "
+                    + best);
+        }
     }
 }
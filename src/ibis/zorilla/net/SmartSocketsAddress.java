@@ -1,5 +1,8 @@
 package ibis.zorilla.net;
 
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
 /**
  * Represents the Address of a node. Closely related to a
  * DirectSocketAddress in SmartSockets.
@@ -7,10 +10,80 @@ package ibis.zorilla.net;
  * @author Niels Drost
  * 
  */
-public class SmartSocketsAddress {
+public class SmartSocketsAddress implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // port used if none is given in the address
+    public static final int DEFAULT_PORT = 5444;
+
+    private final String host;
+
+    private final int port;
 
     public SmartSocketsAddress(String address) {
-        // TODO Auto-generated constructor stub
+        if (address == null) {
+            throw new IllegalArgumentException("address cannot be null");
+        }
+
+        // strip any smartsockets specific decoration, e.g. "host:port/..."
+        String plain = address.trim();
+        int slash = plain.indexOf('/');
+        if (slash != -1) {
+            plain = plain.substring(0, slash);
+        }
+
+        int colon = plain.lastIndexOf(':');
+        if (colon == -1) {
+            host = plain;
+            port = DEFAULT_PORT;
+        } else {
+            host = plain.substring(0, colon);
+            port = Integer.parseInt(plain.substring(colon + 1));
+        }
+
+        if (host.length() == 0) {
+            throw new IllegalArgumentException("no host in address: "
+                    + address);
+        }
+    }
+
+    public SmartSocketsAddress(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns a (resolved) socket address which can be used to create a
+     * direct connection to this address.
+     */
+    public InetSocketAddress toSocketAddress() {
+        return new InetSocketAddress(host, port);
+    }
+
+    public int hashCode() {
+        return host.hashCode() + port;
+    }
+
+    public boolean equals(Object object) {
+        if (!(object instanceof SmartSocketsAddress)) {
+            return false;
+        }
+        SmartSocketsAddress other = (SmartSocketsAddress) object;
+
+        return host.equals(other.host) && port == other.port;
+    }
+
+    public String toString() {
+        return host + ":" + port;
     }
 
 }